@@ -0,0 +1,311 @@
+package com.github.tunagohan.gachaplus;
+
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.Chest;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/*
+ * GachaPlusBenchmarkFixture
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+final class GachaPlusBenchmarkFixture {
+  private static final Logger LOGGER = Logger.getLogger("GachaPlus-Benchmark");
+
+  private GachaPlusBenchmarkFixture() {
+  }
+
+  /**
+   * Minimal interface stub: answers by method name, everything else returns a default.
+   * Cheaper than a Mockito mock on the measured path.
+   * @param Class type
+   * @param Map answers Method name to return value.
+   * @return T
+   */
+  static <T> T stub(Class<T> type, Map<String, Object> answers) {
+    String name = type.getSimpleName();
+    Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (self, method, args) -> {
+      if(method.getDeclaringClass() == Object.class) {
+        switch(method.getName()) {
+          case "hashCode":
+            return System.identityHashCode(self);
+          case "equals":
+            return self == args[0];
+          default:
+            return name;
+        }
+      }
+      if(answers.containsKey(method.getName())) {
+        return answers.get(method.getName());
+      }
+      return defaultValue(method);
+    });
+    return type.cast(proxy);
+  }
+
+  private static Object defaultValue(Method method) {
+    Class<?> r = method.getReturnType();
+    if(r == boolean.class) {
+      return false;
+    } else if(r == int.class) {
+      return 0;
+    } else if(r == long.class) {
+      return 0L;
+    } else if(r == double.class) {
+      return 0.0d;
+    } else if(r == float.class) {
+      return 0.0f;
+    } else if(r == short.class) {
+      return (short)0;
+    } else if(r == byte.class) {
+      return (byte)0;
+    } else if(r == char.class) {
+      return (char)0;
+    }
+    return null;
+  }
+
+  /**
+   * Install a stub server once, ItemStack needs an item factory for hashCode and clone.
+   */
+  static synchronized void installServer() {
+    if(Bukkit.getServer() != null) {
+      return;
+    }
+    Map<String, Object> factory = new HashMap<String, Object>();
+    // equals(meta1, meta2) with both null: items without meta.
+    factory.put("equals", true);
+    Map<String, Object> server = new HashMap<String, Object>();
+    server.put("getLogger", LOGGER);
+    server.put("getName", "GachaPlus-Benchmark");
+    server.put("getVersion", "benchmark");
+    server.put("getBukkitVersion", "benchmark");
+    server.put("getItemFactory", stub(ItemFactory.class, factory));
+    Bukkit.setServer(stub(Server.class, server));
+  }
+
+  /**
+   * Default config.yml from the plugin jar with overrides.
+   * @param String storageType
+   * @return YamlConfiguration
+   */
+  static YamlConfiguration config(String storageType) {
+    YamlConfiguration config = YamlConfiguration.loadConfiguration(
+            new InputStreamReader(GachaPlus.class.getResourceAsStream("/config.yml"), StandardCharsets.UTF_8));
+    config.set("storage.type", storageType);
+    config.set("cache-reconcile-seconds", 0);
+    return config;
+  }
+
+  /**
+   * Scheduler of a single region owned by the benchmark thread. Tasks run inline, timers never fire.
+   */
+  static final class InlineScheduler implements GachaPlusScheduler {
+    @Override
+    public void runGlobal(Runnable task) {
+      task.run();
+    }
+
+    @Override
+    public void runAt(Location loc, Runnable task) {
+      task.run();
+    }
+
+    @Override
+    public void runFor(Entity entity, Runnable task) {
+      task.run();
+    }
+
+    @Override
+    public Task runTimer(Runnable task, long delayTicks, long periodTicks) {
+      return () -> {};
+    }
+
+    @Override
+    public Task runTimerAsync(Runnable task, long delayTicks, long periodTicks) {
+      return () -> {};
+    }
+
+    @Override
+    public boolean isOwnedByCurrentRegion(Location loc) {
+      return true;
+    }
+  }
+
+  /**
+   * Plugin mock. Main-thread and region hops run inline.
+   * @param File dataFolder
+   * @param YamlConfiguration config
+   * @return GachaPlus
+   */
+  static GachaPlus plugin(File dataFolder, YamlConfiguration config) {
+    GachaPlus gacha = mock(GachaPlus.class, withSettings().stubOnly());
+    when(gacha.getConfig()).thenReturn(config);
+    when(gacha.getDataFolder()).thenReturn(dataFolder);
+    when(gacha.getLogger()).thenReturn(LOGGER);
+    when(gacha.getMainThreadExecutor()).thenReturn(Runnable::run);
+    when(gacha.getScheduler()).thenReturn(new InlineScheduler());
+    when(gacha.getMetrics()).thenReturn(new GachaPlusMetrics());
+    GachaPlusJournal journal = new GachaPlusJournal(gacha);
+    try {
+      journal.start();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    when(gacha.getJournal()).thenReturn(journal);
+    when(gacha.getPity()).thenReturn(new GachaPlusPity(gacha));
+    when(gacha.getMessages()).thenReturn(new GachaPlusMessages(config));
+    return gacha;
+  }
+
+  /**
+   * World stub whose blocks are all the given chest.
+   * @param String name
+   * @param Chest chest null for a world without chests.
+   * @return World
+   */
+  static World world(String name, Chest chest) {
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("getName", name);
+    answers.put("getUID", UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)));
+    if(chest != null) {
+      Map<String, Object> block = new HashMap<String, Object>();
+      block.put("getType", Material.CHEST);
+      block.put("getState", chest);
+      answers.put("getBlockAt", stub(Block.class, block));
+    }
+    return stub(World.class, answers);
+  }
+
+  /**
+   * Chest stub holding items.
+   * @param ItemStack[] items Empty slots are null.
+   * @return Chest
+   */
+  static Chest chest(ItemStack[] items) {
+    Inventory iv = (Inventory) Proxy.newProxyInstance(Inventory.class.getClassLoader(), new Class<?>[]{Inventory.class}, (self, method, args) -> {
+      switch(method.getName()) {
+        case "getSize":
+          return items.length;
+        case "getItem":
+          return items[(Integer)args[0]];
+        case "getContents":
+        case "getStorageContents":
+          return items.clone();
+        case "hashCode":
+          return System.identityHashCode(self);
+        case "equals":
+          return self == args[0];
+        default:
+          return defaultValue(method);
+      }
+    });
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("getInventory", iv);
+    answers.put("getBlockInventory", iv);
+    return stub(Chest.class, answers);
+  }
+
+  /**
+   * Player stub with an empty hand and an inventory that accepts everything.
+   * @return Player
+   */
+  static Player player() {
+    Map<String, Object> inventory = new HashMap<String, Object>();
+    inventory.put("getItemInMainHand", new ItemStack(Material.AIR));
+    inventory.put("addItem", new HashMap<Integer, ItemStack>());
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("getInventory", stub(PlayerInventory.class, inventory));
+    answers.put("getUniqueId", UUID.randomUUID());
+    answers.put("getName", "benchmark");
+    answers.put("isOnline", true);
+    return stub(Player.class, answers);
+  }
+
+  /**
+   * Install an economy that always accepts the withdrawal.
+   */
+  static void installEconomy() throws ReflectiveOperationException {
+    EconomyResponse ok = new EconomyResponse(0, Double.MAX_VALUE, EconomyResponse.ResponseType.SUCCESS, null);
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("has", true);
+    answers.put("withdrawPlayer", ok);
+    answers.put("depositPlayer", ok);
+    answers.put("isEnabled", true);
+    answers.put("format", "0");
+    Field econ = GachaPlus.class.getDeclaredField("econ");
+    econ.setAccessible(true);
+    econ.set(null, stub(Economy.class, answers));
+  }
+
+  /**
+   * Definition with its sign spread over a 1000 x 1000 area and its chest below the sign.
+   * Chest coordinates are unique too, the gacha table has a unique index on them.
+   * @param int i
+   * @param String worldName
+   * @return GachaPlusDefinition
+   */
+  static GachaPlusDefinition definition(int i, String worldName) {
+    int x = (i * 7919) % 1000;
+    int y = 64 + (i % 8) * 2;
+    int z = (i / 1000) * 3;
+    return new GachaPlusDefinition(i + 1, "gacha_" + i, "Gacha " + i, 100, worldName, x, y, z, x, y - 1, z);
+  }
+
+  /**
+   * Sign location of a definition.
+   * @param GachaPlusDefinition def
+   * @param World world
+   * @return Location
+   */
+  static Location signLocation(GachaPlusDefinition def, World world) {
+    return new Location(world, def.getSignX(), def.getSignY(), def.getSignZ());
+  }
+
+  static File tempDir() throws IOException {
+    return Files.createTempDirectory("gachaplus-bench").toFile();
+  }
+
+  static void delete(File dir) throws IOException {
+    if(dir == null || !dir.exists()) {
+      return;
+    }
+    try(Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.github.tunagohan.gachaplus;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * GachaPlusBenchmarks
+ * Runs all benchmarks with the GC profiler (allocation rate) and writes
+ * JSON results, target/jmh-result.json by default. Regular JMH options
+ * are accepted and override the defaults, e.g. -rff other.json or a
+ * benchmark name pattern.
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusBenchmarks {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    OptionsBuilder builder = new OptionsBuilder();
+    builder.parent(cmd);
+    if(cmd.getIncludes().isEmpty()) {
+      builder.include("GachaPlus.*Benchmark");
+    }
+    if(!cmd.getResultFormat().hasValue()) {
+      builder.resultFormat(ResultFormatType.JSON);
+    }
+    if(!cmd.getResult().hasValue()) {
+      builder.result("target/jmh-result.json");
+    }
+    if(cmd.getProfilers().isEmpty()) {
+      builder.addProfiler(GCProfiler.class);
+    }
+    Options options = builder.build();
+    new Runner(options).run();
+  }
+}
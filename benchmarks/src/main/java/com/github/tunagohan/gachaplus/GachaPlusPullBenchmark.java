@@ -0,0 +1,100 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Chest;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/*
+ * GachaPlusPullBenchmark
+ * End to end pull: registry lookup, economy, chest snapshot, draw, pull log and delivery.
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GachaPlusPullBenchmark {
+
+  @Param({"1", "10"})
+  public int pullCount;
+
+  private File dataFolder;
+  private GachaPlusDatabase database;
+  private GachaPlusPullLog pullLog;
+  private GachaPlusJournal journal;
+  private GachaPlusListener listener;
+  private Player player;
+  private Location signLoc;
+  private World world;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    GachaPlusBenchmarkFixture.installServer();
+    GachaPlusBenchmarkFixture.installEconomy();
+    dataFolder = GachaPlusBenchmarkFixture.tempDir();
+    GachaPlus gacha = GachaPlusBenchmarkFixture.plugin(dataFolder, GachaPlusBenchmarkFixture.config("sqlite"));
+
+    database = new GachaPlusDatabase(gacha);
+    when(gacha.getDatabase()).thenReturn(database);
+    database.initialize();
+    pullLog = new GachaPlusPullLog(gacha);
+    journal = gacha.getJournal();
+    when(gacha.getPullLog()).thenReturn(pullLog);
+    GachaPlusChestCache chestCache = new GachaPlusChestCache(gacha);
+    when(gacha.getChestCache()).thenReturn(chestCache);
+    listener = new GachaPlusListener(gacha);
+
+    // Half of a single chest is filled, the rest are misses.
+    ItemStack[] items = new ItemStack[27];
+    for(int i = 0; i < items.length; i += 2) {
+      items[i] = new ItemStack(Material.DIAMOND, 1 + i % 3);
+    }
+    Chest chest = GachaPlusBenchmarkFixture.chest(items);
+    world = GachaPlusBenchmarkFixture.world("world", chest);
+
+    GachaPlusDefinition def = GachaPlusBenchmarkFixture.definition(0, "world").withChest(0, 10, 64, 10);
+    database.getRegistry().put(def);
+    signLoc = GachaPlusBenchmarkFixture.signLocation(def, world);
+    player = GachaPlusBenchmarkFixture.player();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    pullLog.shutdown();
+    journal.shutdown(1000);
+    database.finalize();
+    GachaPlusBenchmarkFixture.delete(dataFolder);
+  }
+
+  @Benchmark
+  public GachaPlusDefinition pull() {
+    GachaPlusDefinition def = database.getRegistry().get(signLoc);
+    listener.pull(player, def, world, pullCount);
+    return def;
+  }
+}
@@ -0,0 +1,90 @@
+package com.github.tunagohan.gachaplus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * GachaPlusRefreshCacheBenchmark
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GachaPlusRefreshCacheBenchmark {
+
+  @Param({"10", "1000", "100000"})
+  public int gachaCount;
+
+  private File dataFolder;
+  private GachaPlusDatabase database;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    GachaPlusBenchmarkFixture.installServer();
+    dataFolder = GachaPlusBenchmarkFixture.tempDir();
+    GachaPlus gacha = GachaPlusBenchmarkFixture.plugin(dataFolder, GachaPlusBenchmarkFixture.config("sqlite"));
+    database = new GachaPlusDatabase(gacha);
+    database.initialize();
+
+    int count = gachaCount;
+    database.write(c -> {
+      PreparedStatement prepStmt = c.prepare("INSERT INTO gacha("
+              + "  gacha_name, gacha_display_name, gacha_price, world_name, sign_x, sign_y, sign_z"
+              + ") VALUES (?,?,?,?,?,?,?)");
+      PreparedStatement chestStmt = c.prepare("INSERT INTO gacha_chest("
+              + "  gacha_id, position, world_name, chest_x, chest_y, chest_z"
+              + ") SELECT id, 0, world_name, ?, ?, ? FROM gacha WHERE gacha_name = ?");
+      for(int i = 0; i < count; i++) {
+        GachaPlusDefinition def = GachaPlusBenchmarkFixture.definition(i, "world");
+        prepStmt.setString(1, def.getName());
+        prepStmt.setString(2, def.getDisplayName());
+        prepStmt.setInt(3, def.getPrice());
+        prepStmt.setString(4, def.getWorldName());
+        prepStmt.setInt(5, def.getSignX());
+        prepStmt.setInt(6, def.getSignY());
+        prepStmt.setInt(7, def.getSignZ());
+        prepStmt.addBatch();
+        GachaPlusDefinition.ChestLink link = def.getChest(0);
+        chestStmt.setInt(1, link.getX());
+        chestStmt.setInt(2, link.getY());
+        chestStmt.setInt(3, link.getZ());
+        chestStmt.setString(4, def.getName());
+        chestStmt.addBatch();
+      }
+      prepStmt.executeBatch();
+      chestStmt.executeBatch();
+      return null;
+    }).join();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    database.finalize();
+    GachaPlusBenchmarkFixture.delete(dataFolder);
+  }
+
+  @Benchmark
+  public boolean refreshCache() {
+    return database.refreshCache();
+  }
+}
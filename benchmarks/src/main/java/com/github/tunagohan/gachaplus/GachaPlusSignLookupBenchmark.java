@@ -0,0 +1,86 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * GachaPlusSignLookupBenchmark
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GachaPlusSignLookupBenchmark {
+  private static final int PROBES = 1024;
+
+  @Param({"10", "1000", "100000"})
+  public int gachaCount;
+
+  private File dataFolder;
+  private GachaPlusDatabase database;
+  private Location[] hits;
+  private Location[] misses;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    GachaPlusBenchmarkFixture.installServer();
+    dataFolder = GachaPlusBenchmarkFixture.tempDir();
+    GachaPlus gacha = GachaPlusBenchmarkFixture.plugin(dataFolder, GachaPlusBenchmarkFixture.config("sqlite"));
+    // Not initialized: isGacha is answered from the registry alone.
+    database = new GachaPlusDatabase(gacha);
+
+    World world = GachaPlusBenchmarkFixture.world("world", null);
+    GachaPlusDefinition[] defs = new GachaPlusDefinition[gachaCount];
+    for(int i = 0; i < gachaCount; i++) {
+      defs[i] = GachaPlusBenchmarkFixture.definition(i, "world");
+    }
+    database.getRegistry().replaceAll(Arrays.asList(defs));
+
+    hits = new Location[PROBES];
+    misses = new Location[PROBES];
+    for(int i = 0; i < PROBES; i++) {
+      GachaPlusDefinition def = defs[(int)((i * 2654435761L) % gachaCount)];
+      hits[i] = GachaPlusBenchmarkFixture.signLocation(def, world);
+      misses[i] = new Location(world, def.getSignX(), 300, def.getSignZ());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    database.finalize();
+    GachaPlusBenchmarkFixture.delete(dataFolder);
+  }
+
+  @Benchmark
+  public boolean signHit() {
+    return database.isGacha(hits[next++ & (PROBES - 1)]);
+  }
+
+  @Benchmark
+  public boolean signMiss() {
+    return database.isGacha(misses[next++ & (PROBES - 1)]);
+  }
+}
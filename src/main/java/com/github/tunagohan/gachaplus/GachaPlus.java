@@ -1,6 +1,7 @@
 package com.github.tunagohan.gachaplus;
 
 import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.event.HandlerList;
@@ -9,6 +10,8 @@ import org.bukkit.plugin.RegisteredServiceProvider;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /*
@@ -21,6 +24,18 @@ public class GachaPlus extends JavaPlugin{
     private GachaPlusDatabase database;
     private GachaPlusCommand command;
     private GachaPlusListener listener;
+    private GachaPlusPullLog pullLog;
+    private GachaPlusChestCache chestCache;
+    private GachaPlusRateLimiter rateLimiter;
+    private GachaPlusMetrics metrics = new GachaPlusMetrics();
+    private GachaPlusJournal journal;
+    private GachaPlusPity pity;
+    private GachaPlusMessages messages;
+    private GachaPlusScheduler scheduler;
+    private GachaPlusScheduler.Task metricsTask;
+    // true between onEnable and onDisable, so /gachaplus enable does not start everything twice.
+    private boolean started;
+    private final Executor mainThreadExecutor = task -> scheduler.runGlobal(task);
 
     private static Economy econ;
 
@@ -45,12 +60,88 @@ public class GachaPlus extends JavaPlugin{
         return listener;
     }
 
+    /**
+     * Get GachaPlusPullLog instance.
+     */
+    public GachaPlusPullLog getPullLog() {
+        return pullLog;
+    }
+
+    /**
+     * Get GachaPlusChestCache instance.
+     */
+    public GachaPlusChestCache getChestCache() {
+        return chestCache;
+    }
+
+    /**
+     * Get GachaPlusRateLimiter instance.
+     */
+    public GachaPlusRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Get GachaPlusMetrics instance.
+     */
+    public GachaPlusMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get GachaPlusMessages instance.
+     */
+    public GachaPlusMessages getMessages() {
+        return messages;
+    }
+
+    /**
+     * Get GachaPlusPity instance.
+     */
+    public GachaPlusPity getPity() {
+        return pity;
+    }
+
+    /**
+     * Get GachaPlusJournal instance.
+     */
+    public GachaPlusJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Get GachaPlusScheduler instance.
+     */
+    public GachaPlusScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get executor that runs tasks on the server main thread, or the global region on Folia.
+     */
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
     /**
      * JavaPlugin method onEnable.
      */
     @Override
     public void onEnable(){
         try{
+            // Enabling a running plugin restarts it: the writers, timers and journal of the last run are stopped first.
+            if(started) {
+                onDisable();
+            }
+            // recover() must not read the file while the writer thread of the last journal may still append to it.
+            if(journal != null) {
+                if(!journal.shutdown(TimeUnit.SECONDS.toMillis(getConfig().getInt("query-timeout")))) {
+                    getLogger().severe("The journal of the last run is still being written. Try again later.");
+                    return;
+                }
+                journal = null;
+            }
+            started = true;
             getLogger().log(Level.INFO, "The Plugin Has Been Enabled!");
 
             // If there is no setting file, it is created
@@ -63,18 +154,41 @@ public class GachaPlus extends JavaPlugin{
                 saveDefaultConfig();
             }
 
+            scheduler = GachaPlusScheduler.create(this);
+            GachaPlusRandom.configure(getConfig());
+            messages = new GachaPlusMessages(getConfig());
+
             // Initialize the database.
             database = new GachaPlusDatabase(this);
             database.initialize();
 
+            // Pull history is buffered in memory and flushed through the database writer.
+            pullLog = new GachaPlusPullLog(this);
+
             // Register event listener.
             PluginManager pm = getServer().getPluginManager();
             HandlerList.unregisterAll(this);    // clean up
             listener = new GachaPlusListener(this);
             pm.registerEvents(listener, this);
+            chestCache = new GachaPlusChestCache(this);
+            pm.registerEvents(chestCache, this);
+            rateLimiter = new GachaPlusRateLimiter(getConfig());
+            pm.registerEvents(rateLimiter, this);
+            // Pity counters live in memory and are flushed through the database writer.
+            pity = new GachaPlusPity(this);
+            pm.registerEvents(pity, this);
+            pity.start();
+
+            // Prometheus text file for the local scraper. 0 disables it.
+            long exportTicks = getConfig().getLong("metrics.export-seconds", 60) * 20L;
+            if(exportTicks > 0) {
+                File metricsFile = new File(getDataFolder(), getConfig().getString("metrics.file", "metrics.prom"));
+                metricsTask = scheduler.runTimerAsync(() -> metrics.export(metricsFile), exportTicks, exportTicks);
+            }
 
             // Instance prepared of GachaCommand.
             command = new GachaPlusCommand(this);
+            pm.registerEvents(command, this);
 
             if (!setupEconomy()) {
                 this.getLogger().severe("Disabled due to no Vault dependency found!");
@@ -82,6 +196,18 @@ public class GachaPlus extends JavaPlugin{
                 return;
             }
 
+            // Refund pulls a crash left between withdrawal and commit, then start journaling.
+            journal = new GachaPlusJournal(this);
+            for(GachaPlusJournal.Pending pending: journal.recover()) {
+                EconomyResponse r = econ.depositPlayer(getServer().getOfflinePlayer(pending.getPlayer()), pending.getAmount());
+                getLogger().warning("Refund of unfinished pull: player=" + pending.getPlayer() + " gacha_id=" + pending.getGachaId()
+                        + " amount=" + pending.getAmount() + " success=" + r.transactionSuccess());
+                if(r.transactionSuccess()) {
+                    journal.refund(pending.getId());
+                }
+            }
+            journal.start();
+
         } catch (Exception e){
             GachaPlusUtility.logStackTrace(e);
         }
@@ -104,41 +230,100 @@ public class GachaPlus extends JavaPlugin{
             }
             String subCommand = args[0];
 
-            command.initialize(sender, args);
             switch(subCommand) {
                 case "list":
                     if(sender.hasPermission("gachaplus.list")) {
-                        hideUseageFlag = command.list();
+                        hideUseageFlag = command.list(sender, args);
                     }
                     break;
 
                 case "modify":
                     if(sender.hasPermission("gachaplus.modify")) {
-                        hideUseageFlag = command.modify();
+                        hideUseageFlag = command.modify(sender, args);
+                    }
+                    break;
+
+                case "link":
+                    if(sender.hasPermission("gachaplus.modify")) {
+                        hideUseageFlag = command.link(sender, args);
+                    }
+                    break;
+
+                case "unlink":
+                    if(sender.hasPermission("gachaplus.modify")) {
+                        hideUseageFlag = command.unlink(sender, args);
+                    }
+                    break;
+
+                case "chests":
+                    if(sender.hasPermission("gachaplus.list")) {
+                        hideUseageFlag = command.chests(sender, args);
                     }
                     break;
 
                 case "delete":
                     if(sender.hasPermission("gachaplus.delete")) {
-                        hideUseageFlag = command.delete();
+                        hideUseageFlag = command.delete(sender, args);
+                    }
+                    break;
+
+                case "pull":
+                    if(sender.hasPermission("gachaplus.pull")) {
+                        hideUseageFlag = command.pull(sender, args);
+                    }
+                    break;
+
+                case "stats":
+                    if(sender.hasPermission("gachaplus.stats")) {
+                        hideUseageFlag = command.stats(sender, args);
+                    }
+                    break;
+
+                case "loot":
+                    if(sender.hasPermission("gachaplus.list")) {
+                        hideUseageFlag = command.loot(sender, args);
+                    }
+                    break;
+
+                case "weight":
+                    if(sender.hasPermission("gachaplus.modify")) {
+                        hideUseageFlag = command.weight(sender, args);
+                    }
+                    break;
+
+                case "export":
+                    if(sender.hasPermission("gachaplus.list")) {
+                        hideUseageFlag = command.export(sender, args);
+                    }
+                    break;
+
+                case "import":
+                    if(sender.hasPermission("gachaplus.create")) {
+                        hideUseageFlag = command.importFile(sender, args);
+                    }
+                    break;
+
+                case "simulate":
+                    if(sender.hasPermission("gachaplus.simulate")) {
+                        hideUseageFlag = command.simulate(sender, args);
                     }
                     break;
 
                 case "enable":
                     if(sender.isOp()) {
-                        hideUseageFlag = command.enable();
+                        hideUseageFlag = command.enable(sender, args);
                     }
                     break;
 
                 case "reload":
                     if(sender.isOp()) {
-                        hideUseageFlag = command.reload();
+                        hideUseageFlag = command.reload(sender, args);
                     }
                     break;
 
                 case "disable":
                     if(sender.isOp()) {
-                        hideUseageFlag = command.disable();
+                        hideUseageFlag = command.disable(sender, args);
                     }
                     break;
 
@@ -147,8 +332,6 @@ public class GachaPlus extends JavaPlugin{
             }
         }catch(Exception e){
             GachaPlusUtility.logStackTrace(e);
-        }finally{
-            command.finalize();
         }
         return hideUseageFlag;
     }
@@ -159,8 +342,24 @@ public class GachaPlus extends JavaPlugin{
     @Override
     public void onDisable(){
         try{
-            database.finalize();
-            command.finalize();
+            started = false;
+            if(metricsTask != null) {
+                metricsTask.cancel();
+                metricsTask = null;
+            }
+            if(pity != null) {
+                pity.shutdown();
+            }
+            if(pullLog != null) {
+                pullLog.shutdown();
+            }
+            // Kept while its thread still owns the file, so recover() does not run against it.
+            if(journal != null && journal.shutdown(TimeUnit.SECONDS.toMillis(getConfig().getInt("query-timeout")))) {
+                journal = null;
+            }
+            if(database != null) {
+                database.finalize();
+            }
 
             // Unregister all event listener.
             HandlerList.unregisterAll(this);
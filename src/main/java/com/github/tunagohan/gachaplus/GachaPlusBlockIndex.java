@@ -0,0 +1,318 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * GachaPlusBlockIndex
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusBlockIndex<V> {
+  private final Map<String, LongMap<V>> worlds = new HashMap<String, LongMap<V>>();
+  private int size;
+
+  /**
+   * Pack block coordinates into a long.
+   * x and z use 26 bits, y uses 12 bits (same layout as vanilla BlockPos).
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return long Packed key.
+   */
+  public static long pack(int x, int y, int z) {
+    return ((long)(x & 0x3FFFFFF) << 38) | ((long)(z & 0x3FFFFFF) << 12) | (long)(y & 0xFFF);
+  }
+
+  /**
+   * Put block.
+   * @param String worldName
+   * @param int x
+   * @param int y
+   * @param int z
+   * @param V value
+   * @return V|null Previous value.
+   */
+  public V put(String worldName, int x, int y, int z, V value) {
+    LongMap<V> map = worlds.get(worldName);
+    if(map == null) {
+      map = new LongMap<V>();
+      worlds.put(worldName, map);
+    }
+    V prev = map.put(pack(x, y, z), value);
+    if(prev == null) {
+      size++;
+    }
+    return prev;
+  }
+
+  /**
+   * Get value of block.
+   * @param String worldName
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return V|null Value.
+   */
+  public V get(String worldName, int x, int y, int z) {
+    LongMap<V> map = worlds.get(worldName);
+    if(map == null) {
+      return null;
+    }
+    return map.get(pack(x, y, z));
+  }
+
+  /**
+   * Get value of block.
+   * @param Location loc
+   * @return V|null Value.
+   */
+  public V get(Location loc) {
+    World world = loc.getWorld();
+    if(world == null) {
+      return null;
+    }
+    return get(world.getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+  }
+
+  /**
+   * Remove block.
+   * @param String worldName
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return V|null Removed value.
+   */
+  public V remove(String worldName, int x, int y, int z) {
+    LongMap<V> map = worlds.get(worldName);
+    if(map == null) {
+      return null;
+    }
+    V prev = map.remove(pack(x, y, z));
+    if(prev != null) {
+      size--;
+    }
+    return prev;
+  }
+
+  /**
+   * Determine whether the block is registered.
+   * @param String worldName
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return boolean true:Registered false:Not registered
+   */
+  public boolean contains(String worldName, int x, int y, int z) {
+    return get(worldName, x, y, z) != null;
+  }
+
+  /**
+   * Determine whether the block is registered.
+   * @param Location loc
+   * @return boolean true:Registered false:Not registered
+   */
+  public boolean contains(Location loc) {
+    return get(loc) != null;
+  }
+
+  /**
+   * Number of registered blocks.
+   * @return int size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Copy of the index. Values are shared, the tables are not.
+   * @return GachaPlusBlockIndex
+   */
+  public GachaPlusBlockIndex<V> copy() {
+    GachaPlusBlockIndex<V> copy = new GachaPlusBlockIndex<V>();
+    for(Map.Entry<String, LongMap<V>> e: worlds.entrySet()) {
+      copy.worlds.put(e.getKey(), e.getValue().copy());
+    }
+    copy.size = size;
+    return copy;
+  }
+
+  /**
+   * Open addressing hash map of long to object with linear probing.
+   * Null values are not allowed.
+   */
+  static final class LongMap<V> {
+    private static final long FREE = 0L;
+    private long[] keys = new long[16];
+    private Object[] values = new Object[16];
+    private Object freeValue;
+    private int used;
+
+    /**
+     * Callback for forEach, keeps keys unboxed.
+     */
+    interface Visitor<V> {
+      void accept(long key, V value);
+    }
+
+    private static int mix(long key) {
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdL;
+      key ^= key >>> 33;
+      key *= 0xc4ceb9fe1a85ec53L;
+      key ^= key >>> 33;
+      return (int)key;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+      if(key == FREE) {
+        return (V)freeValue;
+      }
+      long[] k = keys;
+      int mask = k.length - 1;
+      int i = mix(key) & mask;
+      long cur;
+      while((cur = k[i]) != FREE) {
+        if(cur == key) {
+          return (V)values[i];
+        }
+        i = (i + 1) & mask;
+      }
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+      if(key == FREE) {
+        V prev = (V)freeValue;
+        freeValue = value;
+        return prev;
+      }
+      int mask = keys.length - 1;
+      int i = mix(key) & mask;
+      long cur;
+      while((cur = keys[i]) != FREE) {
+        if(cur == key) {
+          V prev = (V)values[i];
+          values[i] = value;
+          return prev;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values[i] = value;
+      // Keep the load factor at or below 1/2 so probe chains stay short.
+      if(++used * 2 > keys.length) {
+        rehash(keys.length * 2);
+      }
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+      if(key == FREE) {
+        V prev = (V)freeValue;
+        freeValue = null;
+        return prev;
+      }
+      int mask = keys.length - 1;
+      int i = mix(key) & mask;
+      long cur;
+      while((cur = keys[i]) != FREE) {
+        if(cur == key) {
+          V prev = (V)values[i];
+          shiftKeys(i);
+          used--;
+          return prev;
+        }
+        i = (i + 1) & mask;
+      }
+      return null;
+    }
+
+    /**
+     * Visit every entry. The map must not be modified while visiting.
+     * @param Visitor visitor
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<V> visitor) {
+      if(freeValue != null) {
+        visitor.accept(FREE, (V)freeValue);
+      }
+      for(int i = 0; i < keys.length; i++) {
+        if(keys[i] != FREE) {
+          visitor.accept(keys[i], (V)values[i]);
+        }
+      }
+    }
+
+    boolean isEmpty() {
+      return used == 0 && freeValue == null;
+    }
+
+    /**
+     * Copy of the map, two array copies. Values are shared.
+     * @return LongMap
+     */
+    LongMap<V> copy() {
+      LongMap<V> copy = new LongMap<V>();
+      copy.keys = keys.clone();
+      copy.values = values.clone();
+      copy.freeValue = freeValue;
+      copy.used = used;
+      return copy;
+    }
+
+    /**
+     * Backward shift deletion, so no tombstones are needed.
+     */
+    private void shiftKeys(int pos) {
+      int mask = keys.length - 1;
+      int last;
+      long cur;
+      while(true) {
+        last = pos;
+        pos = (pos + 1) & mask;
+        while(true) {
+          if((cur = keys[pos]) == FREE) {
+            keys[last] = FREE;
+            values[last] = null;
+            return;
+          }
+          int slot = mix(cur) & mask;
+          if(last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+            break;
+          }
+          pos = (pos + 1) & mask;
+        }
+        keys[last] = cur;
+        values[last] = values[pos];
+      }
+    }
+
+    private void rehash(int capacity) {
+      long[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new long[capacity];
+      values = new Object[capacity];
+      int mask = capacity - 1;
+      for(int j = 0; j < oldKeys.length; j++) {
+        long key = oldKeys[j];
+        if(key == FREE) {
+          continue;
+        }
+        int i = mix(key) & mask;
+        while(keys[i] != FREE) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+}
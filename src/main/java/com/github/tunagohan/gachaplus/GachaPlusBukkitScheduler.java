@@ -0,0 +1,60 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.scheduler.BukkitTask;
+
+/*
+ * GachaPlusBukkitScheduler
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusBukkitScheduler implements GachaPlusScheduler {
+  private final GachaPlus gacha;
+
+  /**
+   * Constructor of GachaPlusBukkitScheduler.
+   * Every region belongs to the main thread.
+   * @param GachaPlus gacha
+   */
+  public GachaPlusBukkitScheduler(GachaPlus gacha) {
+    this.gacha = gacha;
+  }
+
+  @Override
+  public void runGlobal(Runnable task) {
+    gacha.getServer().getScheduler().runTask(gacha, task);
+  }
+
+  @Override
+  public void runAt(Location loc, Runnable task) {
+    runGlobal(task);
+  }
+
+  @Override
+  public void runFor(Entity entity, Runnable task) {
+    runGlobal(() -> {
+      if(entity.isValid()) {
+        task.run();
+      }
+    });
+  }
+
+  @Override
+  public Task runTimer(Runnable task, long delayTicks, long periodTicks) {
+    BukkitTask t = gacha.getServer().getScheduler().runTaskTimer(gacha, task, delayTicks, periodTicks);
+    return t::cancel;
+  }
+
+  @Override
+  public Task runTimerAsync(Runnable task, long delayTicks, long periodTicks) {
+    BukkitTask t = gacha.getServer().getScheduler().runTaskTimerAsynchronously(gacha, task, delayTicks, periodTicks);
+    return t::cancel;
+  }
+
+  @Override
+  public boolean isOwnedByCurrentRegion(Location loc) {
+    return gacha.getServer().isPrimaryThread();
+  }
+}
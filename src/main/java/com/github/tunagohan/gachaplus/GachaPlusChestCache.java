@@ -0,0 +1,299 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.Chest;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * GachaPlusChestCache
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusChestCache implements Listener {
+  private final GachaPlus gacha;
+  // Guarded by this. Only the owning region reads or drops the snapshot of a block,
+  // so the unlocked size() fast path can never miss one it needs to drop.
+  private volatile GachaPlusBlockIndex<Snapshot> snapshots = new GachaPlusBlockIndex<Snapshot>();
+  // Gacha name -> flattened contents of its linked chests.
+  private final Map<String, GachaPlusPool> pools = new ConcurrentHashMap<String, GachaPlusPool>();
+  // Bumped by every invalidation under the lock, so a pool built from a snapshot dropped meanwhile is not cached.
+  private final AtomicLong epoch = new AtomicLong();
+
+  /**
+   * Contents of one chest block and the gacha whose pool holds them.
+   */
+  private static final class Snapshot {
+    // null when there was no chest at the block.
+    private final ItemStack[] items;
+    private volatile String owner;
+
+    private Snapshot(ItemStack[] items, String owner) {
+      this.items = items;
+      this.owner = owner;
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusChestCache.
+   * Snapshots of gacha chest contents and the pools built from them.
+   * Safe on any thread; a chest block is only read on the thread of its region.
+   * @param GachaPlus gacha
+   */
+  public GachaPlusChestCache(GachaPlus gacha) {
+    this.gacha = gacha;
+  }
+
+  /**
+   * Get the pool of a gacha. It is only rebuilt after one of its chests changed
+   * or the links changed, and then only the changed chests are read.
+   * The future is already done unless a chest has to be read in another region,
+   * in which case it completes on that region's thread.
+   * The pool and its items are shared, never modify them.
+   * @param GachaPlusDefinition def
+   * @param World world World of the gacha.
+   * @return CompletableFuture Pool, null when none of the linked chests exists.
+   */
+  public CompletableFuture<GachaPlusPool> load(GachaPlusDefinition def, World world) {
+    GachaPlusPool pool = pools.get(def.getName());
+    if(pool != null && pool.isBuiltFrom(def)) {
+      gacha.getMetrics().counter("chest_cache_hits").increment();
+      return CompletableFuture.completedFuture(pool);
+    }
+    gacha.getMetrics().counter("pool_rebuilds").increment();
+    long start = epoch.get();
+    List<GachaPlusDefinition.ChestLink> chests = def.getChests();
+    @SuppressWarnings("unchecked")
+    CompletableFuture<ItemStack[]>[] reads = new CompletableFuture[chests.size()];
+    for(int i = 0; i < reads.length; i++) {
+      reads[i] = contents(world, chests.get(i), def.getName());
+    }
+    return CompletableFuture.allOf(reads).thenApply(v -> {
+      GachaPlusPool built = build(chests, reads);
+      synchronized(this) {
+        if(epoch.get() == start) {
+          if(built == null) {
+            pools.remove(def.getName());
+          } else {
+            pools.put(def.getName(), built);
+          }
+        }
+      }
+      return built;
+    });
+  }
+
+  private GachaPlusPool build(List<GachaPlusDefinition.ChestLink> chests, CompletableFuture<ItemStack[]>[] reads) {
+    if(chests.isEmpty()) {
+      return null;
+    }
+    int last = chests.get(chests.size() - 1).getPosition();
+    ItemStack[] items = new ItemStack[(last + 1) * GachaPlusPool.SLOTS_PER_CHEST];
+    int[] slots = new int[chests.size() * GachaPlusPool.SLOTS_PER_CHEST];
+    int n = 0;
+    for(int c = 0; c < reads.length; c++) {
+      ItemStack[] contents = reads[c].join();
+      if(contents == null) {
+        continue;
+      }
+      int first = chests.get(c).getFirstSlot();
+      int length = Math.min(contents.length, GachaPlusPool.SLOTS_PER_CHEST);
+      System.arraycopy(contents, 0, items, first, length);
+      for(int i = 0; i < length; i++) {
+        slots[n++] = first + i;
+      }
+    }
+    return n == 0 ? null : new GachaPlusPool(chests, items, Arrays.copyOf(slots, n));
+  }
+
+  /**
+   * Get chest contents. The chest block is only read when there is no snapshot yet,
+   * on this thread if it owns the chest's region, otherwise on the region's thread.
+   * Empty slots are null.
+   * @param World world
+   * @param GachaPlusDefinition.ChestLink link
+   * @param String owner Gacha whose pool is built from the chest.
+   * @return CompletableFuture ItemStack[], null when there is no chest.
+   */
+  private CompletableFuture<ItemStack[]> contents(World world, GachaPlusDefinition.ChestLink link, String owner) {
+    Snapshot snapshot = snapshot(world.getName(), link.getX(), link.getY(), link.getZ());
+    if(snapshot != null) {
+      snapshot.owner = owner;
+      return CompletableFuture.completedFuture(snapshot.items);
+    }
+    Location loc = GachaPlusDefinition.getChestLocation(world, link);
+    GachaPlusScheduler scheduler = gacha.getScheduler();
+    if(scheduler.isOwnedByCurrentRegion(loc)) {
+      return CompletableFuture.completedFuture(read(world, link, loc, owner));
+    }
+    CompletableFuture<ItemStack[]> future = new CompletableFuture<ItemStack[]>();
+    scheduler.runAt(loc, () -> {
+      try {
+        future.complete(read(world, link, loc, owner));
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Read a chest block into a snapshot. Must run on the thread of its region.
+   * @param World world
+   * @param GachaPlusDefinition.ChestLink link
+   * @param Location loc
+   * @param String owner
+   * @return ItemStack[]|null null when there is no chest.
+   */
+  private ItemStack[] read(World world, GachaPlusDefinition.ChestLink link, Location loc, String owner) {
+    gacha.getMetrics().counter("chest_cache_misses").increment();
+    ItemStack[] items = null;
+    Chest chest = gacha.getDatabase().getGachaChest(loc);
+    if(chest != null) {
+      Inventory iv = chest.getInventory();
+      items = new ItemStack[iv.getSize()];
+      for(int i = 0; i < items.length; i++) {
+        ItemStack item = iv.getItem(i);
+        if(item != null && !item.getType().equals(Material.AIR)) {
+          items[i] = item.clone();
+        }
+      }
+    }
+    // A missing chest is remembered too, so placing it drops the pool.
+    synchronized(this) {
+      snapshots.put(world.getName(), link.getX(), link.getY(), link.getZ(), new Snapshot(items, owner));
+    }
+    return items;
+  }
+
+  private synchronized Snapshot snapshot(String worldName, int x, int y, int z) {
+    return snapshots.get(worldName, x, y, z);
+  }
+
+  /**
+   * Drop the snapshot of a block and the pool built from it.
+   * @param World world
+   * @param int x
+   * @param int y
+   * @param int z
+   */
+  public void invalidate(World world, int x, int y, int z) {
+    if(snapshots.size() > 0) {
+      synchronized(this) {
+        Snapshot snapshot = snapshots.remove(world.getName(), x, y, z);
+        if(snapshot != null) {
+          epoch.incrementAndGet();
+          pools.remove(snapshot.owner);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the snapshot of an inventory. A double chest reports the midpoint
+   * of its halves, so both neighbours on a half-block axis are dropped.
+   * @param Inventory iv
+   */
+  private void invalidate(Inventory iv) {
+    if(snapshots.size() == 0 || iv == null) {
+      return;
+    }
+    Location loc = iv.getLocation();
+    if(loc == null || loc.getWorld() == null) {
+      return;
+    }
+    int x0 = (int)Math.floor(loc.getX());
+    int x1 = (int)Math.ceil(loc.getX());
+    int z0 = (int)Math.floor(loc.getZ());
+    int z1 = (int)Math.ceil(loc.getZ());
+    int y = loc.getBlockY();
+    invalidate(loc.getWorld(), x0, y, z0);
+    if(x1 != x0 || z1 != z0) {
+      invalidate(loc.getWorld(), x1, y, z1);
+    }
+  }
+
+  /**
+   * Drop the snapshot of a block. For a chest the horizontal neighbours are
+   * dropped as well, since they may be the other half of a double chest.
+   * @param Block b
+   */
+  private void invalidate(Block b) {
+    if(snapshots.size() == 0) {
+      return;
+    }
+    World world = b.getWorld();
+    invalidate(world, b.getX(), b.getY(), b.getZ());
+    if(b.getType().equals(Material.CHEST)) {
+      invalidate(world, b.getX() + 1, b.getY(), b.getZ());
+      invalidate(world, b.getX() - 1, b.getY(), b.getZ());
+      invalidate(world, b.getX(), b.getY(), b.getZ() + 1);
+      invalidate(world, b.getX(), b.getY(), b.getZ() - 1);
+    }
+  }
+
+  /**
+   * Drop all snapshots and pools.
+   */
+  public synchronized void clear() {
+    epoch.incrementAndGet();
+    snapshots = new GachaPlusBlockIndex<Snapshot>();
+    pools.clear();
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR)
+  public void onInventoryClose(InventoryCloseEvent event) {
+    invalidate(event.getInventory());
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+  public void onInventoryMoveItem(InventoryMoveItemEvent event) {
+    invalidate(event.getSource());
+    invalidate(event.getDestination());
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+  public void onBlockBreak(BlockBreakEvent event) {
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+  public void onBlockPlace(BlockPlaceEvent event) {
+    // A chest placed next to a gacha chest turns it into a double chest.
+    invalidate(event.getBlock());
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+  public void onBlockExplode(BlockExplodeEvent event) {
+    for(Block b: event.blockList()) {
+      invalidate(b);
+    }
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+  public void onEntityExplode(EntityExplodeEvent event) {
+    for(Block b: event.blockList()) {
+      invalidate(b);
+    }
+  }
+}
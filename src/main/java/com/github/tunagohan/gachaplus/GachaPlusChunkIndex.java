@@ -0,0 +1,93 @@
+package com.github.tunagohan.gachaplus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * GachaPlusChunkIndex
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusChunkIndex {
+  // world name -> chunk key -> number of gacha signs in the chunk
+  private final Map<String, GachaPlusBlockIndex.LongMap<int[]>> worlds = new HashMap<String, GachaPlusBlockIndex.LongMap<int[]>>();
+
+  /**
+   * Pack chunk coordinates into a long.
+   * @param int chunkX
+   * @param int chunkZ
+   * @return long
+   */
+  public static long key(int chunkX, int chunkZ) {
+    return ((long)chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Count a block in its chunk.
+   * @param String worldName
+   * @param int blockX
+   * @param int blockZ
+   */
+  public void add(String worldName, int blockX, int blockZ) {
+    GachaPlusBlockIndex.LongMap<int[]> map = worlds.computeIfAbsent(worldName, k -> new GachaPlusBlockIndex.LongMap<int[]>());
+    long key = key(blockX >> 4, blockZ >> 4);
+    int[] count = map.get(key);
+    if(count == null) {
+      map.put(key, new int[]{1});
+    } else {
+      count[0]++;
+    }
+  }
+
+  /**
+   * Uncount a block in its chunk.
+   * @param String worldName
+   * @param int blockX
+   * @param int blockZ
+   */
+  public void remove(String worldName, int blockX, int blockZ) {
+    GachaPlusBlockIndex.LongMap<int[]> map = worlds.get(worldName);
+    if(map == null) {
+      return;
+    }
+    long key = key(blockX >> 4, blockZ >> 4);
+    int[] count = map.get(key);
+    if(count != null && --count[0] <= 0) {
+      map.remove(key);
+    }
+  }
+
+  /**
+   * Determine whether the chunk of a block may hold a gacha sign.
+   * @param String worldName
+   * @param int blockX
+   * @param int blockZ
+   * @return boolean
+   */
+  public boolean contains(String worldName, int blockX, int blockZ) {
+    GachaPlusBlockIndex.LongMap<int[]> map = worlds.get(worldName);
+    return map != null && map.get(key(blockX >> 4, blockZ >> 4)) != null;
+  }
+
+  /**
+   * Remove everything.
+   */
+  public void clear() {
+    worlds.clear();
+  }
+
+  /**
+   * Copy of the index. Counts are copied too, so the copy can be changed alone.
+   * @return GachaPlusChunkIndex
+   */
+  public GachaPlusChunkIndex copy() {
+    GachaPlusChunkIndex copy = new GachaPlusChunkIndex();
+    for(Map.Entry<String, GachaPlusBlockIndex.LongMap<int[]>> e: worlds.entrySet()) {
+      GachaPlusBlockIndex.LongMap<int[]> map = e.getValue().copy();
+      e.getValue().forEach((key, count) -> map.put(key, new int[]{count[0]}));
+      copy.worlds.put(e.getKey(), map);
+    }
+    return copy;
+  }
+}
@@ -1,9 +1,22 @@
 package com.github.tunagohan.gachaplus;
 
+import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
 
-import java.util.List;
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
  * GachaListener
@@ -11,11 +24,27 @@ import java.util.List;
  * @copyright  Copyright com.github.tunagohan 2021
  * @author     tunagohan
  */
-public class GachaPlusCommand {
+public class GachaPlusCommand implements Listener {
   private GachaPlus gacha;
-  private CommandSender sender;
-  private String[] args;
   protected static final String META_CHEST = "gachaplus.chest";
+  protected static final String META_LINK = "gachaplus.chest.link";
+  // Console and other non-player senders share one key.
+  private static final UUID CONSOLE = new UUID(0, 0);
+  private final Map<UUID, ListCursor> listCursors = new ConcurrentHashMap<UUID, ListCursor>();
+  // One simulation at a time, it takes every core it is given.
+  private final AtomicBoolean simulating = new AtomicBoolean();
+
+  /**
+   * Page cursors of one sender for one set of list filters.
+   */
+  private static final class ListCursor {
+    private final String filterKey;
+    private final Map<Integer, Integer> lastIds = new ConcurrentHashMap<Integer, Integer>();
+
+    private ListCursor(String filterKey) {
+      this.filterKey = filterKey;
+    }
+  }
 
   /**
    * Constructor of GachaCommand.
@@ -30,103 +59,500 @@ public class GachaPlusCommand {
   }
 
   /**
-   * Initialize
-   * @param sender CommandSender CommandSender
-   * @param args String[] Argument
+   * Processing of command list.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
    */
-  public void initialize(CommandSender sender, String[] args){
-    try{
-      this.sender = sender;
-      this.args = args;
-    } catch (Exception e){
-      GachaPlusUtility.logStackTrace(e);
+  public boolean list(CommandSender sender, String[] args) {
+    GachaPlusListQuery query = GachaPlusListQuery.parse(sender, args, 1);
+    if(query == null) {
+      return false;
     }
+
+    // Last id of each page already shown with the same filters, so the next page is a keyset query.
+    int page = query.getPage();
+    UUID key = sender instanceof Player ? ((Player)sender).getUniqueId() : CONSOLE;
+    ListCursor cursor = listCursors.get(key);
+    if(cursor == null || !cursor.filterKey.equals(query.getFilterKey())) {
+      cursor = new ListCursor(query.getFilterKey());
+      listCursors.put(key, cursor);
+    }
+    ListCursor saved = cursor;
+    int pageSize = Math.max(1, gacha.getConfig().getInt("list.page-size", 10));
+    gacha.getDatabase().listAsync(query, page == 1 ? null : cursor.lastIds.get(page - 1), pageSize)
+      .thenAcceptAsync(result -> {
+        if(result == null || result.getLines().isEmpty()) {
+          GachaPlusUtility.sendMessage(sender, "Record not found.");
+          return;
+        }
+
+        saved.lastIds.put(page, result.getLastId());
+        GachaPlusUtility.sendMessage(sender, "Page " + page + (result.hasMore() ? ", next: /gachaplus list " + (page + 1) + query.getFilterArgs() : ""));
+        for(String msg: result.getLines()) {
+          GachaPlusUtility.sendMessage(sender, msg);
+        }
+      }, gacha.getMainThreadExecutor())
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        return null;
+      });
+    return true;
   }
 
   /**
-   * Finalize
+   * Processing of command modify.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
    */
-  public void finalize() {
-    try{
-      this.sender = null;
-      this.args = null;
-    } catch (Exception e){
-      GachaPlusUtility.logStackTrace(e);
+  public boolean modify(CommandSender sender, String[] args) {
+    if(args.length != 2) {
+      return false;
     }
+
+    if(!(sender instanceof Player)) {
+      return false;
+    }
+
+    String gachaName = args[1];
+    if(gacha.getDatabase().getRegistry().get(gachaName) == null) {
+      GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName);
+      return true;
+    }
+    GachaPlusUtility.setPunch((Player)sender, gacha, gachaName);
+    GachaPlusUtility.sendMessage(sender, "Please punching(right click) a chest of gachagacha. gacha_name=" + gachaName);
+    return true;
   }
 
   /**
-   * Processing of command list.
+   * Processing of command link.
+   * @param CommandSender sender
+   * @param String[] args
    * @return boolean true:Success false:Failure
    */
-  public boolean list() {
-    List<String> glist = gacha.getDatabase().list();
-    if(glist.size() <= 0) {
-      GachaPlusUtility.sendMessage(sender, "Record not found.");
+  public boolean link(CommandSender sender, String[] args) {
+    if(args.length != 2) {
+      return false;
+    }
+
+    if(!(sender instanceof Player)) {
+      return false;
+    }
+
+    String gachaName = args[1];
+    GachaPlusDefinition def = gacha.getDatabase().getRegistry().get(gachaName);
+    if(def == null) {
+      GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName);
       return true;
     }
+    GachaPlusUtility.setPunch((Player)sender, gacha, gachaName, true);
+    GachaPlusUtility.sendMessage(sender, "Please punching(right click) a chest to add to the gacha. gacha_name=" + gachaName + " chest=" + def.getFreeChestPosition());
+    return true;
+  }
 
-    for(String msg: glist) {
-      GachaPlusUtility.sendMessage(sender, msg);
+  /**
+   * Processing of command unlink.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean unlink(CommandSender sender, String[] args) {
+    if(args.length != 3) {
+      return false;
+    }
+
+    int position;
+    try {
+      position = Integer.parseInt(args[2]);
+    } catch (NumberFormatException e) {
+      return false;
     }
+    String gachaName = args[1];
+    GachaPlusDefinition def = gacha.getDatabase().getRegistry().get(gachaName);
+    if(def == null || def.getChest(position) == null) {
+      GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName + " chest=" + position);
+      return true;
+    }
+
+    gacha.getDatabase().removeGachaChest(gachaName, position)
+      .thenAcceptAsync(deleted -> {
+        if(deleted) {
+          GachaPlusUtility.sendMessage(sender, "Unlinked. gacha_name=" + gachaName + " chest=" + position);
+        } else {
+          GachaPlusUtility.sendMessage(sender, "Can not unlink the chest. gacha_name=" + gachaName);
+        }
+      }, gacha.getMainThreadExecutor())
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        return null;
+      });
     return true;
   }
 
   /**
-   * Processing of command modify.
+   * Processing of command chests.
+   * @param CommandSender sender
+   * @param String[] args
    * @return boolean true:Success false:Failure
    */
-  public boolean modify() {
+  public boolean chests(CommandSender sender, String[] args) {
     if(args.length != 2) {
       return false;
     }
 
-    if(!(sender instanceof Player)) {
+    String gachaName = args[1];
+    GachaPlusDefinition def = gacha.getDatabase().getRegistry().get(gachaName);
+    if(def == null) {
+      GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName);
+      return true;
+    }
+    if(def.getChests().isEmpty()) {
+      GachaPlusUtility.sendMessage(sender, "No chest is linked. gacha_name=" + gachaName);
+      return true;
+    }
+    for(GachaPlusDefinition.ChestLink link: def.getChests()) {
+      GachaPlusUtility.sendMessage(sender, String.format(
+              "chest:%d [x,y,z]:%d,%d,%d slots:%d-%d"
+              ,link.getPosition()
+              ,link.getX()
+              ,link.getY()
+              ,link.getZ()
+              ,link.getFirstSlot()
+              ,link.getFirstSlot() + GachaPlusPool.SLOTS_PER_CHEST - 1
+      ));
+    }
+    return true;
+  }
+
+  /**
+   * Processing of command delete.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean delete(CommandSender sender, String[] args) {
+    if(args.length != 2) {
+      return false;
+    }
+
+    String gachaName = args[1];
+    gacha.getDatabase().removeGacha(gachaName)
+      .thenAcceptAsync(deleted -> {
+        if(deleted) {
+          GachaPlusUtility.sendMessage(sender, "Deleted. gacha_name=" + gachaName);
+        } else {
+          GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName);
+        }
+      }, gacha.getMainThreadExecutor())
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        return null;
+      });
+    return true;
+  }
+
+  /**
+   * Processing of command loot.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean loot(CommandSender sender, String[] args) {
+    if(args.length != 2) {
       return false;
     }
 
     String gachaName = args[1];
-    if(gacha.getDatabase().getGacha(gachaName) == null) {
+    GachaPlusDefinition def = gacha.getDatabase().getRegistry().get(gachaName);
+    if(def == null) {
       GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName);
       return true;
     }
-    GachaPlusUtility.setPunch((Player)sender, gacha, gachaName);
-    GachaPlusUtility.sendMessage(sender, "Please punching(right click) a chest of gachagacha. gacha_name=" + gachaName);
+    GachaPlusLootTable loot = def.getLoot();
+    if(loot.isEmpty()) {
+      GachaPlusUtility.sendMessage(sender, "No loot table. Every slot has the same chance. gacha_name=" + gachaName);
+      return true;
+    }
+    for(GachaPlusLootEntry entry: loot.getEntries()) {
+      GachaPlusUtility.sendMessage(sender, String.format(
+              "slot:%d weight:%s chance:%.4f%% rarity:%s"
+              ,entry.getSlot()
+              ,entry.getWeight()
+              ,loot.getChance(entry) * 100
+              ,entry.getRarity() == null ? "-" : entry.getRarity()
+      ));
+    }
     return true;
   }
 
   /**
-   * Processing of command delete.
+   * Processing of command weight.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean weight(CommandSender sender, String[] args) {
+    if(args.length != 4 && args.length != 5) {
+      return false;
+    }
+
+    String gachaName = args[1];
+    int slot;
+    double weight;
+    try {
+      slot = Integer.parseInt(args[2]);
+      weight = Double.parseDouble(args[3]);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if(slot < 0 || Double.isNaN(weight) || Double.isInfinite(weight)) {
+      return false;
+    }
+    if(gacha.getDatabase().getRegistry().get(gachaName) == null) {
+      GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName);
+      return true;
+    }
+
+    GachaPlusLootEntry entry = new GachaPlusLootEntry(slot, weight, args.length == 5 ? args[4] : null);
+    gacha.getDatabase().saveLoot(gachaName, entry)
+      .thenAcceptAsync(updated -> {
+        if(updated) {
+          GachaPlusUtility.sendMessage(sender, "Updated. gacha_name=" + gachaName + " slot=" + slot);
+        } else {
+          GachaPlusUtility.sendMessage(sender, "Can not update loot. gacha_name=" + gachaName);
+        }
+      }, gacha.getMainThreadExecutor())
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        return null;
+      });
+    return true;
+  }
+
+  /**
+   * Processing of command pull.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean pull(CommandSender sender, String[] args) {
+    if(args.length != 2 && args.length != 3) {
+      return false;
+    }
+
+    if(!(sender instanceof Player)) {
+      return false;
+    }
+
+    int count = 1;
+    if(args.length == 3) {
+      try {
+        count = Integer.parseInt(args[2]);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    int max = gacha.getListener().getMaxPullCount();
+    if(count < 1 || count > max) {
+      gacha.getMessages().send(sender, "pull-count-range", max);
+      return true;
+    }
+
+    String gachaName = args[1];
+    GachaPlusDefinition def = gacha.getDatabase().getRegistry().get(gachaName);
+    World world = def == null ? null : gacha.getServer().getWorld(def.getWorldName());
+    if(world == null) {
+      gacha.getMessages().send(sender, "gacha-not-found", gachaName);
+      return true;
+    }
+    if(!gacha.getRateLimiter().tryAcquire(((Player)sender).getUniqueId())) {
+      return true;
+    }
+    gacha.getListener().pull((Player)sender, def, world, count);
+    return true;
+  }
+
+  /**
+   * Processing of command export.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean export(CommandSender sender, String[] args) {
+    if(args.length != 1 && args.length != 2) {
+      return false;
+    }
+
+    GachaPlusTransfer transfer = new GachaPlusTransfer(gacha);
+    File file = transfer.resolve(args.length == 2 ? args[1] : "gachas.jsonl");
+    if(file == null) {
+      GachaPlusUtility.sendMessage(sender, "The file must be in the plugin folder.");
+      return true;
+    }
+    GachaPlusUtility.sendMessage(sender, "Exporting to " + file.getName() + "...");
+    transfer.exportAsync(file, n -> progress(sender, "Exported " + n + " gacha..."))
+      .thenAcceptAsync(count -> {
+        if(count == null) {
+          GachaPlusUtility.sendMessage(sender, "Can not export.");
+          return;
+        }
+        GachaPlusUtility.sendMessage(sender, "Exported " + count + " gacha to " + file.getName() + ".");
+      }, gacha.getMainThreadExecutor())
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        progress(sender, "Can not export. " + (e.getCause() == null ? e : e.getCause()).getMessage());
+        return null;
+      });
+    return true;
+  }
+
+  /**
+   * Processing of command import.
+   * @param CommandSender sender
+   * @param String[] args
    * @return boolean true:Success false:Failure
    */
-  public boolean delete() {
+  public boolean importFile(CommandSender sender, String[] args) {
     if(args.length != 2) {
       return false;
     }
 
+    GachaPlusTransfer transfer = new GachaPlusTransfer(gacha);
+    File file = transfer.resolve(args[1]);
+    if(file == null || !file.isFile()) {
+      GachaPlusUtility.sendMessage(sender, "File not found in the plugin folder. file=" + args[1]);
+      return true;
+    }
+    GachaPlusUtility.sendMessage(sender, "Importing " + file.getName() + "...");
+    transfer.importAsync(file, n -> progress(sender, "Read " + n + " lines..."))
+      .thenAcceptAsync(result -> GachaPlusUtility.sendMessage(sender,
+              "Imported " + result.getImported() + " gacha, skipped " + result.getSkipped() + " already registered."
+      ), gacha.getMainThreadExecutor())
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        Throwable cause = e.getCause() == null ? e : e.getCause();
+        // The import only rolls back on a database error; otherwise it committed and the registry is behind.
+        progress(sender, (cause instanceof SQLException ? "Nothing was imported. " : "") + cause.getMessage());
+        return null;
+      });
+    return true;
+  }
+
+  /**
+   * Processing of command simulate.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean simulate(CommandSender sender, String[] args) {
+    if(args.length < 2 || args.length > 4) {
+      return false;
+    }
+
     String gachaName = args[1];
-    if(gacha.getDatabase().deleteGacha(gachaName)) {
-      GachaPlusUtility.sendMessage(sender, "Deleted. gacha_name=" + gachaName);
+    long pulls = gacha.getConfig().getLong("simulate.default-pulls", 10000000L);
+    long seed = ThreadLocalRandom.current().nextLong();
+    try {
+      if(args.length >= 3) {
+        pulls = Long.parseLong(args[2]);
+      }
+      if(args.length == 4) {
+        seed = Long.parseLong(args[3]);
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    long max = Math.max(1, gacha.getConfig().getLong("simulate.max-pulls", 1000000000L));
+    if(pulls < 1 || pulls > max) {
+      GachaPlusUtility.sendMessage(sender, "Pulls must be between 1 and " + max + ".");
       return true;
     }
-    return false;
+    GachaPlusDefinition def = gacha.getDatabase().getRegistry().get(gachaName);
+    if(def == null) {
+      GachaPlusUtility.sendMessage(sender, "Record not found. gacha_name=" + gachaName);
+      return true;
+    }
+    GachaPlusSimulator simulator;
+    try {
+      simulator = new GachaPlusSimulator(def, gacha.getPity().getRule());
+    } catch (IllegalStateException e) {
+      GachaPlusUtility.sendMessage(sender, e.getMessage());
+      return true;
+    }
+    if(!simulating.compareAndSet(false, true)) {
+      GachaPlusUtility.sendMessage(sender, "A simulation is already running.");
+      return true;
+    }
+
+    long count = pulls;
+    long streamSeed = seed;
+    ForkJoinPool pool = new ForkJoinPool(GachaPlusSimulator.parallelism(gacha.getConfig().getInt("simulate.parallelism", 0)));
+    GachaPlusUtility.sendMessage(sender, "Simulating " + count + " pulls of " + gachaName + " on " + pool.getParallelism() + " threads...");
+    CompletableFuture.supplyAsync(() -> simulator.run(count, streamSeed, pool), pool)
+      .whenComplete((report, e) -> {
+        pool.shutdown();
+        simulating.set(false);
+      })
+      .thenAcceptAsync(report -> {
+        for(String msg: report.format()) {
+          GachaPlusUtility.sendMessage(sender, msg);
+        }
+      }, gacha.getMainThreadExecutor())
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        progress(sender, "Can not simulate. " + (e.getCause() == null ? e : e.getCause()).getMessage());
+        return null;
+      });
+    return true;
+  }
+
+  /**
+   * Report progress from a background thread.
+   * @param CommandSender sender
+   * @param String message
+   */
+  private void progress(CommandSender sender, String message) {
+    gacha.getMainThreadExecutor().execute(() -> GachaPlusUtility.sendMessage(sender, message));
+  }
+
+  /**
+   * Processing of command stats.
+   * @param CommandSender sender
+   * @param String[] args
+   * @return boolean true:Success false:Failure
+   */
+  public boolean stats(CommandSender sender, String[] args) {
+    for(String msg: gacha.getMetrics().format()) {
+      GachaPlusUtility.sendMessage(sender, msg);
+    }
+    return true;
   }
 
   /**
    * Processing of command reload.
+   * @param CommandSender sender
+   * @param String[] args
    * @return boolean true:Success false:Failure
    */
-  public boolean reload() {
+  public boolean reload(CommandSender sender, String[] args) {
     gacha.reloadConfig();
+    gacha.getChestCache().clear();
+    GachaPlusRandom.configure(gacha.getConfig());
+    gacha.getRateLimiter().configure(gacha.getConfig());
+    gacha.getPity().configure(gacha.getConfig());
+    gacha.getMessages().load(gacha.getConfig());
     GachaPlusUtility.sendMessage(sender, "reloaded.");
     return true;
   }
 
   /**
    * Processing of command enable.
+   * @param CommandSender sender
+   * @param String[] args
    * @return boolean true:Success false:Failure
    */
-  public boolean enable() {
+  public boolean enable(CommandSender sender, String[] args) {
     gacha.onEnable();
     GachaPlusUtility.sendMessage(sender, "enabled.");
     return true;
@@ -134,11 +560,18 @@ public class GachaPlusCommand {
 
   /**
    * Processing of command fgdisable.
+   * @param CommandSender sender
+   * @param String[] args
    * @return boolean true:Success false:Failure
    */
-  public boolean disable() {
+  public boolean disable(CommandSender sender, String[] args) {
     gacha.onDisable();
     GachaPlusUtility.sendMessage(sender, "disabled.");
     return true;
   }
+
+  @EventHandler(priority=EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    listCursors.remove(event.getPlayer().getUniqueId());
+  }
 }
@@ -0,0 +1,127 @@
+package com.github.tunagohan.gachaplus;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/*
+ * GachaPlusConnection
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusConnection {
+  private static final long VALIDATE_INTERVAL_MILLIS = 30000L;
+
+  private final Callable<Connection> opener;
+  private final int queryTimeout;
+  private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+  private Connection con;
+  private long lastValidated;
+
+  /**
+   * Constructor of GachaPlusConnection.
+   * Not thread safe, use it from one thread at a time.
+   * @param Callable opener Opens a new JDBC connection.
+   * @param int queryTimeout Seconds.
+   */
+  public GachaPlusConnection(Callable<Connection> opener, int queryTimeout) {
+    this.opener = opener;
+    this.queryTimeout = queryTimeout;
+  }
+
+  /**
+   * Get a healthy connection, reconnecting if the current one is closed or broken.
+   * @return Connection
+   * @throws SQLException
+   */
+  public Connection get() throws SQLException {
+    long now = System.currentTimeMillis();
+    if(con != null && now - lastValidated > VALIDATE_INTERVAL_MILLIS) {
+      if(!con.isValid(queryTimeout)) {
+        close();
+      }
+      lastValidated = now;
+    }
+    if(con == null || con.isClosed()) {
+      close();
+      try {
+        con = opener.call();
+      } catch (SQLException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new SQLException(e);
+      }
+      lastValidated = now;
+    }
+    return con;
+  }
+
+  /**
+   * Get a prepared statement, compiled once per connection.
+   * The statement is owned by the cache, do not close it.
+   * @param String sql
+   * @return PreparedStatement
+   * @throws SQLException
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    Connection c = get();
+    PreparedStatement prepStmt = statements.get(sql);
+    if(prepStmt == null || prepStmt.isClosed()) {
+      if(sql.regionMatches(true, 0, "INSERT", 0, 6)) {
+        prepStmt = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+      } else {
+        prepStmt = c.prepareStatement(sql);
+      }
+      prepStmt.setQueryTimeout(queryTimeout);
+      statements.put(sql, prepStmt);
+    } else {
+      prepStmt.clearParameters();
+    }
+    return prepStmt;
+  }
+
+  /**
+   * Create a one-off statement. The caller closes it.
+   * @return Statement
+   * @throws SQLException
+   */
+  public Statement createStatement() throws SQLException {
+    Statement stmt = get().createStatement();
+    stmt.setQueryTimeout(queryTimeout);
+    return stmt;
+  }
+
+  /**
+   * Force a health check on the next use, e.g. after a query failed.
+   */
+  public void invalidate() {
+    lastValidated = 0;
+  }
+
+  /**
+   * Close cached statements and the connection.
+   */
+  public void close() {
+    for(PreparedStatement prepStmt: statements.values()) {
+      try {
+        prepStmt.close();
+      } catch (SQLException e) {
+        GachaPlusUtility.logStackTrace(e);
+      }
+    }
+    statements.clear();
+    if(con != null) {
+      try {
+        con.close();
+      } catch (SQLException e) {
+        GachaPlusUtility.logStackTrace(e);
+      }
+      con = null;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.github.tunagohan.gachaplus;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * GachaPlusConnectionPool
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusConnectionPool {
+  private final BlockingQueue<GachaPlusConnection> idle;
+  private final List<GachaPlusConnection> all = new ArrayList<GachaPlusConnection>();
+  private final int queryTimeout;
+
+  /**
+   * Constructor of GachaPlusConnectionPool.
+   * Connections are opened lazily on first use and reopened by GachaPlusConnection when broken.
+   * @param GachaPlusStorage storage
+   * @param int size Max connections.
+   * @param int queryTimeout Seconds.
+   */
+  public GachaPlusConnectionPool(GachaPlusStorage storage, int size, int queryTimeout) {
+    this.idle = new ArrayBlockingQueue<GachaPlusConnection>(size);
+    this.queryTimeout = queryTimeout;
+    for(int i = 0; i < size; i++) {
+      GachaPlusConnection c = new GachaPlusConnection(storage::open, queryTimeout);
+      all.add(c);
+      idle.add(c);
+    }
+  }
+
+  /**
+   * Borrow a connection, waiting up to query-timeout for one to be released.
+   * @return GachaPlusConnection
+   * @throws SQLException
+   */
+  public GachaPlusConnection borrow() throws SQLException {
+    try {
+      GachaPlusConnection c = idle.poll(queryTimeout, TimeUnit.SECONDS);
+      if(c == null) {
+        throw new SQLException("Timed out waiting for a database connection.");
+      }
+      return c;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException(e);
+    }
+  }
+
+  /**
+   * Return a borrowed connection.
+   * @param GachaPlusConnection c
+   */
+  public void release(GachaPlusConnection c) {
+    idle.offer(c);
+  }
+
+  /**
+   * Close all connections.
+   */
+  public void close() {
+    for(GachaPlusConnection c: all) {
+      c.close();
+    }
+    idle.clear();
+  }
+}
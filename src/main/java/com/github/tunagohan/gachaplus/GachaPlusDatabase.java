@@ -5,10 +5,18 @@ import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.Chest;
 
-import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /*
  * GachaListener
@@ -18,9 +26,16 @@ import java.util.List;
  */
 public class GachaPlusDatabase {
   private GachaPlus gacha;
-  private Connection con;
-  private List<String> listGachaSignCache = new ArrayList<String>();
-  private long expireCache;
+  private final GachaPlusStorage storage;
+  private GachaPlusConnectionPool pool;
+  private GachaPlusWriter writer;
+  private final GachaPlusRegistry registry = new GachaPlusRegistry();
+  // Registry changes whose write has not committed yet.
+  private final AtomicInteger pendingWrites = new AtomicInteger();
+  private GachaPlusScheduler.Task reconcileTask;
+  // Reconcile interval of a shared database when cache-reconcile-seconds is 0.
+  private static final long SHARED_RECONCILE_SECONDS = 60;
+  private final ExecutorService executor;
 
   /**
    * Constructor of GachaDatabase.
@@ -28,99 +43,145 @@ public class GachaPlusDatabase {
    */
   public GachaPlusDatabase(GachaPlus gacha) {
     this.gacha = gacha;
+    this.storage = GachaPlusStorage.create(gacha);
+    // Reads run on these threads so the main thread never blocks on query-timeout.
+    // One thread per pooled connection, writes go through the writer thread.
+    this.executor = Executors.newFixedThreadPool(storage.getPoolSize(), r -> {
+      Thread t = new Thread(r, "GachaPlus-Database");
+      t.setDaemon(true);
+      return t;
+    });
   }
 
   /**
-   * Get connection.
-   * @return Connection Connection
+   * Run a database task on the I/O thread.
+   * @param Supplier task
+   * @return CompletableFuture Result of the task.
    */
-  private Connection getCon(){
-    try{
-      // Create database folder.
-      if(!gacha.getDataFolder().exists()){
-        gacha.getDataFolder().mkdir();
-      }
-      if(con == null) {
-        // Select JDBC driver.
-        Class.forName("org.sqlite.JDBC");
-        String url = "jdbc:sqlite:" + gacha.getDataFolder() + File.separator + "sqlite.db";
-        con = DriverManager.getConnection(url);
-        con.setAutoCommit(true);
-      }
-    } catch (Exception e){
-      GachaPlusUtility.logStackTrace(e);
-      closeCon(con);
-    }
-    return con;
+  private <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+    return CompletableFuture.supplyAsync(task, executor);
   }
 
   /**
-   * Get statement.
-   * @return Statement Statement
+   * Queue a write on the single writer thread. Queued writes are group-committed.
+   * @param GachaPlusWriter.Task task
+   * @return CompletableFuture Completed after commit.
    */
-  private Statement getStmt(){
-    Statement stmt = null;
-    try{
-      if(stmt == null) {
-        stmt = getCon().createStatement();
-        stmt.setQueryTimeout(gacha.getConfig().getInt("query-timeout"));
-      }
-    } catch (Exception e){
-      GachaPlusUtility.logStackTrace(e);
+  public <T> CompletableFuture<T> write(GachaPlusWriter.Task<T> task) {
+    if(writer == null) {
+      CompletableFuture<T> failed = new CompletableFuture<T>();
+      failed.completeExceptionally(new IllegalStateException("GachaPlus database is not initialized."));
+      return failed;
     }
-    return stmt;
+    return writer.submit(task);
   }
 
   /**
-   * Close connection.
-   * @param Connection Connection
+   * Queue a timed write on the single writer thread.
+   * @param String name Timer name.
+   * @param GachaPlusWriter.Task task
+   * @return CompletableFuture Completed after commit.
    */
-  private static void closeCon(Connection con){
-    try{
-      if(con != null){
-        con.close();
-      }
-    } catch (Exception e){
+  public <T> CompletableFuture<T> write(String name, GachaPlusWriter.Task<T> task) {
+    return write(gacha.getMetrics().timed(name, task));
+  }
+
+  /**
+   * Queue a timed write whose failure completes with false. The writer has
+   * already rolled the task back to its savepoint, so none of its statements commit.
+   * @param String name Timer name.
+   * @param GachaPlusWriter.Task task
+   * @return CompletableFuture true:Success false:Failure
+   */
+  private CompletableFuture<Boolean> writeOrFalse(String name, GachaPlusWriter.Task<Boolean> task) {
+    return write(name, task).exceptionally(e -> {
       GachaPlusUtility.logStackTrace(e);
-    }
+      return false;
+    });
   }
 
   /**
-   * Close result set.
-   * @param ResultSet Result set
+   * Queue a timed write-through whose registry change is undone when the write fails,
+   * so pulls never use loot or chests that are not in the table.
+   * @param String name Timer name.
+   * @param GachaPlusWriter.Task task Throws when the change did not reach the table.
+   * @param Runnable undo Puts the registry back.
+   * @return CompletableFuture true:Success false:Failure
    */
-  private static void closeRs(ResultSet rs) {
-    try{
-      if(rs != null){
-        rs.close();
+  private CompletableFuture<Boolean> writeOrUndo(String name, GachaPlusWriter.Task<Boolean> task, Runnable undo) {
+    return write(name, task).handle((ok, e) -> {
+      if(e == null) {
+        return ok;
       }
-    } catch (Exception e){
       GachaPlusUtility.logStackTrace(e);
-    }
+      undo.run();
+      return false;
+    });
   }
 
   /**
-   * Close statement.
-   * @param Statement Statement
+   * Run a timed read with a pooled connection on the calling thread.
+   * @param String name Timer name.
+   * @param GachaPlusWriter.Task task
+   * @return Result of the task, or null when no connection could be borrowed.
    */
-  private static void closeStmt(Statement stmt) {
-    try{
-      if(stmt != null){
-        stmt.close();
-      }
-    } catch (Exception e){
+  private <T> T read(String name, GachaPlusWriter.Task<T> task) {
+    if(pool == null) {
+      return null;
+    }
+    GachaPlusConnection c = null;
+    try {
+      c = pool.borrow();
+      return gacha.getMetrics().timed(name, task).apply(c);
+    } catch (SQLException e) {
       GachaPlusUtility.logStackTrace(e);
+      if(c != null) {
+        c.invalidate();
+      }
+    } finally {
+      if(c != null) {
+        pool.release(c);
+      }
     }
+    return null;
+  }
+
+  /**
+   * Run a timed read on the I/O thread.
+   * @param String name Timer name.
+   * @param GachaPlusWriter.Task task
+   * @return CompletableFuture Result of the task, or null when it failed.
+   */
+  public <T> CompletableFuture<T> readAsync(String name, GachaPlusWriter.Task<T> task) {
+    return supplyAsync(() -> read(name, task));
+  }
+
+  /**
+   * Get storage backend.
+   * @return GachaPlusStorage
+   */
+  public GachaPlusStorage getStorage() {
+    return storage;
   }
 
   /**
-   * Close prepared statement.
-   * @param PreparedStatement PreparedStatement
+   * Log a failed query and force a connection health check on the next one.
+   * @param GachaPlusConnection c
+   * @param SQLException e
    */
-  private static void closePrepStmt(PreparedStatement prepStmt){
+  private static void logSQLException(GachaPlusConnection c, SQLException e){
+    GachaPlusUtility.logStackTrace(e);
+    c.invalidate();
+  }
+
+  /**
+   * Close result set.
+   * @param ResultSet Result set
+   */
+  private static void closeRs(ResultSet rs) {
     try{
-      if(prepStmt != null){
-        prepStmt.close();
+      if(rs != null){
+        rs.close();
       }
     } catch (Exception e){
       GachaPlusUtility.logStackTrace(e);
@@ -132,9 +193,24 @@ public class GachaPlusDatabase {
    */
   public void finalize() {
     try{
-      closeCon(getCon());
-      listGachaSignCache  = new ArrayList<String>();
-      expireCache = System.currentTimeMillis();
+      // Stop the timer first, so no tick reaches the executor once it is shut down.
+      if(reconcileTask != null) {
+        reconcileTask.cancel();
+        reconcileTask = null;
+      }
+      executor.shutdown();
+      if(!executor.awaitTermination(gacha.getConfig().getInt("query-timeout"), TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+      if(writer != null) {
+        // Flush queued writes before closing.
+        writer.shutdown(TimeUnit.SECONDS.toMillis(gacha.getConfig().getInt("query-timeout")));
+        writer = null;
+      }
+      if(pool != null) {
+        pool.close();
+        pool = null;
+      }
     } catch (Exception e){
       GachaPlusUtility.logStackTrace(e);
     }
@@ -144,234 +220,169 @@ public class GachaPlusDatabase {
    * Initialize
    */
   public void initialize() {
-    ResultSet rs = null;
-    Statement stmt = null;
     try{
-      stmt = getStmt();
-
-      stmt.executeUpdate("CREATE TABLE IF NOT EXISTS gacha ("
-              + "  id INTEGER PRIMARY KEY AUTOINCREMENT"
-              + "  ,gacha_name STRING NOT NULL"
-              + "  ,gacha_display_name STRING NOT NULL"
-              + "  ,gacha_price INTEGER NOT NULL"
-              + "  ,world_name STRING NOT NULL"
-              + "  ,sign_x INTEGER NOT NULL"
-              + "  ,sign_y INTEGER NOT NULL"
-              + "  ,sign_z INTEGER NOT NULL"
-              + "  ,chest_x INTEGER NOT NULL DEFAULT 0"
-              + "  ,chest_y INTEGER NOT NULL DEFAULT 0"
-              + "  ,chest_z INTEGER NOT NULL DEFAULT 0"
-              + "  ,updated_at DATETIME NOT NULL DEFAULT (datetime('now','localtime')) CHECK(updated_at LIKE '____-__-__ __:__:__')"
-              + "  ,created_at DATETIME NOT NULL DEFAULT (datetime('now','localtime')) CHECK(created_at LIKE '____-__-__ __:__:__')"
-              + ");"
-      );
-      stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS gacha_name_uindex ON gacha (gacha_name);");
-      stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS world_name_sign_xyz_uindex ON gacha (world_name, sign_x, sign_y, sign_z);");
-      stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS world_name_chest_xyz_uindex ON gacha (world_name, chest_x, chest_y, chest_z);");
+      int timeout = gacha.getConfig().getInt("query-timeout");
+      pool = new GachaPlusConnectionPool(storage, storage.getPoolSize(), timeout);
+
+      GachaPlusConnection c = pool.borrow();
+      int version;
+      try {
+        version = GachaPlusMigrator.migrate(c.get(), storage, gacha.getLogger());
+      } finally {
+        pool.release(c);
+      }
+      gacha.getLogger().info("Storage: " + storage.getName() + " schema version " + version);
 
-      closeStmt(stmt);
+      writer = new GachaPlusWriter(new GachaPlusConnection(storage::open, timeout), gacha.getConfig().getInt("write-batch-size", 256));
+      writer.start();
 
       refreshCache();
 
+      // Optional safety net for rows edited outside the plugin. 0 disables it, except on a
+      // shared database where it is how gacha made on the other servers show up here.
+      long reconcileTicks = gacha.getConfig().getLong("cache-reconcile-seconds", 0) * 20L;
+      if(reconcileTicks <= 0 && storage.isShared()) {
+        reconcileTicks = SHARED_RECONCILE_SECONDS * 20L;
+      }
+      if(reconcileTicks > 0) {
+        reconcileTask = gacha.getScheduler().runTimer(this::refreshCacheAsync, reconcileTicks, reconcileTicks);
+      }
+
     } catch (Exception e){
       GachaPlusUtility.logStackTrace(e);
-    } finally {
-      closeRs(rs);
-      closeStmt(stmt);
     }
   }
 
   /**
-   * list
-   * @return ArrayList
+   * One page of the list, newest first. Keyset pagination: the page starts below
+   * beforeId, so the cost does not grow with the page number.
+   * @param GachaPlusConnection c
+   * @param GachaPlusListQuery query
+   * @param Integer beforeId Last id of the previous page, null to find it by offset.
+   * @param int pageSize
+   * @return GachaPlusListQuery.Page
    */
-  public List<String> list(){
+  private static GachaPlusListQuery.Page list(GachaPlusConnection c, GachaPlusListQuery query, Integer beforeId, int pageSize) throws SQLException {
     PreparedStatement prepStmt = null;
     ResultSet rs = null;
     List<String> ret = new ArrayList<String>();
+    List<Object> params = new ArrayList<Object>();
+    String where = query.where(params);
     try {
-      prepStmt = getCon().prepareStatement("SELECT"
+      if(beforeId == null && query.getPage() > 1) {
+        // No cursor for a jump to page N: find where it starts on the id index alone.
+        prepStmt = c.prepare("SELECT id FROM gacha" + where + " ORDER BY id DESC LIMIT 1 OFFSET ?");
+        bind(prepStmt, params);
+        prepStmt.setInt(params.size() + 1, (query.getPage() - 1) * pageSize - 1);
+        rs = prepStmt.executeQuery();
+        if(!rs.next()) {
+          return new GachaPlusListQuery.Page(ret, 0, false);
+        }
+        beforeId = rs.getInt(1);
+        closeRs(rs);
+      }
+      if(beforeId != null) {
+        where = (where.isEmpty() ? " WHERE " : where + " AND ") + "id < ?";
+        params.add(beforeId);
+      }
+      prepStmt = c.prepare("SELECT"
               + "  gacha_name "
               + "  ,world_name "
               + "  ,sign_x "
               + "  ,sign_y "
               + "  ,sign_z "
-              + "  ,chest_x "
-              + "  ,chest_y "
-              + "  ,chest_z "
+              + "  ,(SELECT COUNT(*) FROM gacha_chest WHERE gacha_chest.gacha_id = gacha.id) "
+              + "  ,id "
               + "FROM"
-              + "  gacha "
-              + "ORDER BY"
-              + "  id DESC"
+              + "  gacha"
+              + where
+              + " ORDER BY"
+              + "  id DESC "
+              + "LIMIT ?"
       );
+      bind(prepStmt, params);
+      // One extra row tells whether there is a next page.
+      prepStmt.setInt(params.size() + 1, pageSize + 1);
       rs = prepStmt.executeQuery();
+      int lastId = 0;
       while(rs.next()){
+        if(ret.size() == pageSize) {
+          return new GachaPlusListQuery.Page(ret, lastId, true);
+        }
+        lastId = rs.getInt(7);
         ret.add(
                 String.format(
-                        "gacha_name:%s world:%s sign[x,y,z]:%d,%d,%d chest[x,y,z]:%d,%d,%d"
+                        "gacha_name:%s world:%s sign[x,y,z]:%d,%d,%d chests:%d"
                         ,rs.getString(1)
                         ,rs.getString(2)
                         ,rs.getInt(3)
                         ,rs.getInt(4)
                         ,rs.getInt(5)
                         ,rs.getInt(6)
-                        ,rs.getInt(7)
-                        ,rs.getInt(8)
                 )
         );
       }
-      closeRs(rs);
-      closePrepStmt(prepStmt);
-    } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
+      return new GachaPlusListQuery.Page(ret, lastId, false);
     } finally {
       closeRs(rs);
-      closePrepStmt(prepStmt);
     }
-    return ret;
   }
 
-  /**
-   * Delete gacha
-   * @param String gachaName
-   * @return boolean true:Success false:Failure
-   */
-  public boolean deleteGacha(String gachaName) {
-    PreparedStatement prepStmt = null;
-    try {
-      prepStmt = getCon().prepareStatement("DELETE FROM gacha WHERE gacha_name = ?;");
-      prepStmt.setString(1, gachaName);
-      prepStmt.addBatch();
-      prepStmt.executeBatch();
-      closePrepStmt(prepStmt);
-      refreshCache();
-
-    } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
-      return false;
+  private static void bind(PreparedStatement prepStmt, List<Object> params) throws SQLException {
+    for(int i = 0; i < params.size(); i++) {
+      prepStmt.setObject(i + 1, params.get(i));
     }
-    return true;
   }
 
   /**
-   * Get gacha id
+   * Delete gacha. Runs on the writer thread.
+   * @param GachaPlusConnection c
    * @param String gachaName
-   * @return Integer|null Gacha id.
+   * @return boolean true:Deleted false:No such gacha
    */
-  public Integer getGacha(String gachaName){
-    PreparedStatement prepStmt = null;
-    ResultSet rs = null;
-    Integer gachaId = null;
-    try {
-      prepStmt = getCon().prepareStatement("SELECT id FROM gacha WHERE gacha_name=?");
-      prepStmt.setString(1, gachaName);
-      rs = prepStmt.executeQuery();
-      while(rs.next()){
-        gachaId = rs.getInt(1);
-      }
-      closeRs(rs);
-      closePrepStmt(prepStmt);
-    } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
-    }
-    return gachaId;
+  private static boolean deleteGacha(GachaPlusConnection c, String gachaName) throws SQLException {
+    PreparedStatement prepStmt = c.prepare("DELETE FROM gacha_loot WHERE gacha_id IN (SELECT id FROM gacha WHERE gacha_name = ?)");
+    prepStmt.setString(1, gachaName);
+    prepStmt.executeUpdate();
+
+    prepStmt = c.prepare("DELETE FROM gacha_pity WHERE gacha_id IN (SELECT id FROM gacha WHERE gacha_name = ?)");
+    prepStmt.setString(1, gachaName);
+    prepStmt.executeUpdate();
+
+    prepStmt = c.prepare("DELETE FROM gacha_chest WHERE gacha_id IN (SELECT id FROM gacha WHERE gacha_name = ?)");
+    prepStmt.setString(1, gachaName);
+    prepStmt.executeUpdate();
+
+    prepStmt = c.prepare("DELETE FROM gacha WHERE gacha_name = ?");
+    prepStmt.setString(1, gachaName);
+    return prepStmt.executeUpdate() > 0;
   }
 
   /**
-   * Get gacha chest
-   * @param Location signLoc
+   * Get gacha chest. Must be called on the thread that owns the chest's region.
+   * @param Location chestLoc
    * @return Chest|null Gacha chest.
    */
-  public Chest getGachaChest(Location signLoc){
-    PreparedStatement prepStmt = null;
-    ResultSet rs = null;
-    try {
-      prepStmt = getCon().prepareStatement("SELECT world_name, chest_x, chest_y, chest_z FROM gacha WHERE world_name=? AND sign_x=? AND sign_y=? AND sign_z=?");
-      prepStmt.setString(1, signLoc.getWorld().getName());
-      prepStmt.setInt(2, signLoc.getBlockX());
-      prepStmt.setInt(3, signLoc.getBlockY());
-      prepStmt.setInt(4, signLoc.getBlockZ());
-      rs = prepStmt.executeQuery();
-      String worldName = "";
-      Integer chestX = null;
-      Integer chestY = null;
-      Integer chestZ = null;
-      boolean isChestNothing = false;
-      while(rs.next()){
-        worldName = rs.getString(1);
-        chestX = rs.getInt(2);
-        if (rs.wasNull()) {
-          isChestNothing = true;
-        }
-        chestY = rs.getInt(3);
-        if (rs.wasNull()) {
-          isChestNothing = true;
-        }
-        chestZ = rs.getInt(4);
-        if (rs.wasNull()) {
-          isChestNothing = true;
-        }
-      }
-      closeRs(rs);
-      closePrepStmt(prepStmt);
-
-      if(isChestNothing) {
-        return null;
-      }
-
-      Block b = new Location(gacha.getServer().getWorld(worldName), chestX, chestY, chestZ).getBlock();
-      if(!b.getType().equals(Material.CHEST)) {
-        return null;
-      }
-
-      return (Chest)b.getState();
-    } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
+  public Chest getGachaChest(Location chestLoc){
+    if(chestLoc == null) {
+      return null;
     }
-    return null;
-  }
-
-  /**
-   * Get gacha id
-   * @param Location loc
-   * @return Integer|null Gacha id.
-   */
-  public boolean isGacha(Location loc){
-    try {
-      boolean cacheClear = false;
-      if(expireCache > System.currentTimeMillis()) {
-        cacheClear = true;
-      }
-      return isGacha(loc, cacheClear);
-    } catch (Exception e) {
-      GachaPlusUtility.logStackTrace(e);
+    Block b = chestLoc.getBlock();
+    if(!b.getType().equals(Material.CHEST)) {
+      return null;
     }
-    return false;
+    return (Chest)b.getState();
   }
 
   /**
-   * Get gacha id
+   * Determine whether the sign is a registered gacha.
+   * Answered from the registry only, a sign click never touches the database.
    * @param Location loc
-   * @param boolean cacheClear
-   * @return Integer|null Gacha id.
+   * @return boolean true:Registered false:Not registered
    */
-  public boolean isGacha(Location loc, boolean cacheClear){
+  public boolean isGacha(Location loc){
     try {
-      if( cacheClear ) {
-        refreshCache();
-      }
-      String searchIndex = String.join(
-              "_"
-              ,loc.getWorld().getName()
-              ,String.valueOf(loc.getBlockX())
-              ,String.valueOf(loc.getBlockY())
-              ,String.valueOf(loc.getBlockZ())
-      );
-      if(listGachaSignCache.contains(searchIndex)) {
-        // no database & cache hit.
-        return true;
-      }
-
+      return registry.get(loc) != null;
     } catch (Exception e) {
       GachaPlusUtility.logStackTrace(e);
     }
@@ -379,37 +390,26 @@ public class GachaPlusDatabase {
   }
 
   /**
-   * Refresh Cache
+   * Refresh Cache. Rebuild the registry from the table.
    * @return boolean Success:true Failure:false
    */
   public boolean refreshCache(){
+    long start = System.nanoTime();
     try {
-      PreparedStatement prepStmt = getCon().prepareStatement("SELECT world_name, sign_x, sign_y, sign_z FROM gacha");
-      ResultSet rs = prepStmt.executeQuery();
-      String cacheIndex;
-      listGachaSignCache.clear();
-      while(rs.next()){
-        cacheIndex = String.join(
-                "_"
-                ,rs.getString(1)
-                ,String.valueOf(rs.getInt(2))
-                ,String.valueOf(rs.getInt(3))
-                ,String.valueOf(rs.getInt(4))
-        );
-        listGachaSignCache.add(cacheIndex);
+      List<GachaPlusDefinition> defs = read("db.load_definitions", GachaPlusDatabase::loadDefinitions);
+      if(defs == null) {
+        return false;
       }
-      expireCache = System.currentTimeMillis() + (gacha.getConfig().getInt("cache-expire-seconds") * 1000);
-      closeRs(rs);
-      closePrepStmt(prepStmt);
+      registry.replaceAll(defs);
       return true;
-    } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
+    } finally {
+      gacha.getMetrics().timer("cache.refresh").stop(start);
     }
-    return false;
   }
 
   /**
-   * Get gacha
+   * Insert gacha. Runs on the writer thread.
+   * @param GachaPlusConnection c
    * @param String gachaName
    * @param String gachaDisplayNam
    * @param String gachaPrice
@@ -417,19 +417,14 @@ public class GachaPlusDatabase {
    * @param Integer sign_x
    * @param Integer sign_y
    * @param Integer sign_z
-   * @return Integer Gacha id.
+   * @return Integer|null Gacha id.
    */
-  public Integer getGacha(String gachaName, String gachaDisplayName, Integer gachaPrice, String worldName, Integer signX, Integer signY, Integer signZ){
+  private static Integer insertGacha(GachaPlusConnection c, String gachaName, String gachaDisplayName, Integer gachaPrice, String worldName, Integer signX, Integer signY, Integer signZ){
     PreparedStatement prepStmt = null;
     ResultSet rs = null;
     Integer gachaId = null;
     try {
-      gachaId = getGacha(gachaName);
-      if(gachaId != null){
-        return gachaId;
-      }
-
-      prepStmt = getCon().prepareStatement("INSERT INTO gacha("
+      prepStmt = c.prepare("INSERT INTO gacha("
               + "  gacha_name"
               + ", gacha_display_name"
               + ", gacha_price"
@@ -445,76 +440,416 @@ public class GachaPlusDatabase {
       prepStmt.setInt(5, signX);
       prepStmt.setInt(6, signY);
       prepStmt.setInt(7, signZ);
-      prepStmt.addBatch();
-      prepStmt.executeBatch();
+      prepStmt.executeUpdate();
       rs = prepStmt.getGeneratedKeys();
       if (rs.next()) {
         gachaId = rs.getInt(1);
       }
       closeRs(rs);
-      closePrepStmt(prepStmt);
-      refreshCache();
 
     } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
+      logSQLException(c, e);
     } finally {
       closeRs(rs);
-      closePrepStmt(prepStmt);
     }
     return gachaId;
   }
 
   /**
-   * Update gacha chest
-   * @param gachaName
+   * Link a chest at a position, replacing the chest there. Runs on the writer thread.
+   * The gacha is found by name, its id may not be known yet.
+   * @param GachaPlusConnection c
+   * @param String gachaName
+   * @param int position
    * @param Integer chestX
    * @param Integer chestY
    * @param Integer chestZ
-   * @return Integer Gacha id.
+   * @return boolean true:Success false:Failure
+   */
+  private static boolean updateGachaChest(GachaPlusConnection c, String gachaName, int position, Integer chestX, Integer chestY, Integer chestZ) throws SQLException {
+    PreparedStatement prepStmt = c.prepare("DELETE FROM gacha_chest WHERE gacha_id IN (SELECT id FROM gacha WHERE gacha_name = ?) AND position = ?");
+    prepStmt.setString(1, gachaName);
+    prepStmt.setInt(2, position);
+    prepStmt.executeUpdate();
+
+    prepStmt = c.prepare("INSERT INTO gacha_chest(gacha_id, position, world_name, chest_x, chest_y, chest_z)"
+            + " SELECT id, ?, world_name, ?, ?, ? FROM gacha WHERE gacha_name = ?");
+    prepStmt.setInt(1, position);
+    prepStmt.setInt(2, chestX);
+    prepStmt.setInt(3, chestY);
+    prepStmt.setInt(4, chestZ);
+    prepStmt.setString(5, gachaName);
+    if(prepStmt.executeUpdate() == 0) {
+      // Rolled back to the task's savepoint, so the old chest is kept too.
+      throw new SQLException("Record not found. gacha_name=" + gachaName);
+    }
+    return true;
+  }
+
+  /**
+   * Unlink the chest at a position and drop the loot entries of its slots. Runs on the writer thread.
+   * @param GachaPlusConnection c
+   * @param String gachaName
+   * @param int position
+   * @return boolean true:Success false:Failure
+   */
+  private static boolean deleteGachaChest(GachaPlusConnection c, String gachaName, int position) throws SQLException {
+    PreparedStatement prepStmt = c.prepare("DELETE FROM gacha_chest WHERE gacha_id IN (SELECT id FROM gacha WHERE gacha_name = ?) AND position = ?");
+    prepStmt.setString(1, gachaName);
+    prepStmt.setInt(2, position);
+    int deleted = prepStmt.executeUpdate();
+
+    prepStmt = c.prepare("DELETE FROM gacha_loot WHERE gacha_id IN (SELECT id FROM gacha WHERE gacha_name = ?) AND slot >= ? AND slot < ?");
+    prepStmt.setString(1, gachaName);
+    prepStmt.setInt(2, position * GachaPlusPool.SLOTS_PER_CHEST);
+    prepStmt.setInt(3, (position + 1) * GachaPlusPool.SLOTS_PER_CHEST);
+    prepStmt.executeUpdate();
+    return deleted > 0;
+  }
+
+  /**
+   * One page of the list on the I/O thread
+   * @param GachaPlusListQuery query
+   * @param Integer beforeId Last id of the previous page, or null.
+   * @param int pageSize
+   * @return CompletableFuture Page, or null when the query failed.
+   */
+  public CompletableFuture<GachaPlusListQuery.Page> listAsync(GachaPlusListQuery query, Integer beforeId, int pageSize){
+    return supplyAsync(() -> read("db.list", c -> list(c, query, beforeId, pageSize)));
+  }
+
+  /**
+   * Delete gacha on the writer thread
+   * @param String gachaName
+   * @return CompletableFuture true:Success false:Failure
+   */
+  public CompletableFuture<Boolean> deleteGachaAsync(String gachaName){
+    return writeOrFalse("db.delete", c -> deleteGacha(c, gachaName));
+  }
+
+  /**
+   * Insert gacha on the writer thread
+   * @return CompletableFuture Gacha id or null.
+   */
+  public CompletableFuture<Integer> insertGachaAsync(String gachaName, String gachaDisplayName, Integer gachaPrice, String worldName, Integer signX, Integer signY, Integer signZ){
+    return write("db.insert", c -> insertGacha(c, gachaName, gachaDisplayName, gachaPrice, worldName, signX, signY, signZ));
+  }
+
+  /**
+   * Link gacha chest on the writer thread
+   * @return CompletableFuture true:Success false:Failure
    */
-  public boolean updateGachaChest(String gachaName, Integer chestX, Integer chestY, Integer chestZ){
+  public CompletableFuture<Boolean> updateGachaChestAsync(String gachaName, int position, Integer chestX, Integer chestY, Integer chestZ){
+    return writeOrFalse("db.update_chest", c -> updateGachaChest(c, gachaName, position, chestX, chestY, chestZ));
+  }
+
+  /**
+   * Unlink gacha chest on the writer thread
+   * @return CompletableFuture true:Success false:Failure
+   */
+  public CompletableFuture<Boolean> deleteGachaChestAsync(String gachaName, int position){
+    return writeOrFalse("db.delete_chest", c -> deleteGachaChest(c, gachaName, position));
+  }
+
+  /**
+   * Reconcile the registry with the table. The scan and the swap both run on the I/O thread.
+   * @return CompletableFuture Success:true Failure:false
+   */
+  public CompletableFuture<Boolean> refreshCacheAsync(){
+    return supplyAsync(() -> {
+      long version = registry.getVersion();
+      // A registry change still waiting for its write would be missing from the rows; leave it to the next scan.
+      if(pendingWrites.get() > 0) {
+        return false;
+      }
+      List<GachaPlusDefinition> defs = read("db.load_definitions", GachaPlusDatabase::loadDefinitions);
+      // A write-through happened while scanning; the snapshot may miss it, so keep the deltas.
+      return defs != null && registry.replaceAll(defs, version);
+    });
+  }
+
+  /**
+   * Change the registry and queue its write, counted as pending until the write completes.
+   * @param Supplier change Changes the registry and returns the write.
+   * @return CompletableFuture
+   */
+  private <T> CompletableFuture<T> writeThrough(Supplier<CompletableFuture<T>> change) {
+    pendingWrites.incrementAndGet();
+    CompletableFuture<T> written;
+    try {
+      written = change.get();
+    } catch (RuntimeException e) {
+      pendingWrites.decrementAndGet();
+      throw e;
+    }
+    return written.whenComplete((r, e) -> pendingWrites.decrementAndGet());
+  }
+
+  /**
+   * Get registry of gacha definitions. Safe on any thread.
+   * @return GachaPlusRegistry
+   */
+  public GachaPlusRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Load all gacha definitions.
+   * @param GachaPlusConnection c
+   * @return List
+   */
+  static List<GachaPlusDefinition> loadDefinitions(GachaPlusConnection c) throws SQLException {
     PreparedStatement prepStmt = null;
     ResultSet rs = null;
+    List<GachaPlusDefinition> ret = new ArrayList<GachaPlusDefinition>();
+    Map<Integer, List<GachaPlusLootEntry>> loot = loadLoot(c);
+    Map<Integer, List<GachaPlusDefinition.ChestLink>> chests = loadChests(c);
     try {
-      Integer gachaId = getGacha(gachaName);
-      if(gachaId == null){
-        return false;
+      prepStmt = c.prepare("SELECT"
+              + "  id "
+              + "  ,gacha_name "
+              + "  ,gacha_display_name "
+              + "  ,gacha_price "
+              + "  ,world_name "
+              + "  ,sign_x "
+              + "  ,sign_y "
+              + "  ,sign_z "
+              + "FROM"
+              + "  gacha"
+      );
+      rs = prepStmt.executeQuery();
+      while(rs.next()){
+        ret.add(new GachaPlusDefinition(
+                rs.getInt(1)
+                ,rs.getString(2)
+                ,rs.getString(3)
+                ,rs.getInt(4)
+                ,rs.getString(5)
+                ,rs.getInt(6)
+                ,rs.getInt(7)
+                ,rs.getInt(8)
+                ,chests.getOrDefault(rs.getInt(1), Collections.<GachaPlusDefinition.ChestLink>emptyList())
+                ,toLootTable(loot.get(rs.getInt(1)))
+        ));
       }
+    } finally {
+      closeRs(rs);
+    }
+    return ret;
+  }
 
-      prepStmt = getCon().prepareStatement("UPDATE gacha SET chest_x = ?, chest_y = ?, chest_z = ? WHERE gacha_name = ?;");
-      prepStmt.setInt(1, chestX);
-      prepStmt.setInt(2, chestY);
-      prepStmt.setInt(3, chestZ);
-      prepStmt.setString(4, gachaName);
-      prepStmt.addBatch();
-      prepStmt.executeBatch();
-      closePrepStmt(prepStmt);
-      return true;
-    } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
+  /**
+   * Load all loot entries grouped by gacha id.
+   * @param GachaPlusConnection c
+   * @return Map
+   */
+  static Map<Integer, List<GachaPlusLootEntry>> loadLoot(GachaPlusConnection c) throws SQLException {
+    PreparedStatement prepStmt = null;
+    ResultSet rs = null;
+    Map<Integer, List<GachaPlusLootEntry>> ret = new HashMap<Integer, List<GachaPlusLootEntry>>();
+    try {
+      prepStmt = c.prepare("SELECT gacha_id, slot, weight, rarity FROM gacha_loot WHERE weight > 0 ORDER BY gacha_id, slot");
+      rs = prepStmt.executeQuery();
+      while(rs.next()){
+        ret.computeIfAbsent(rs.getInt(1), k -> new ArrayList<GachaPlusLootEntry>())
+          .add(new GachaPlusLootEntry(rs.getInt(2), rs.getDouble(3), rs.getString(4)));
+      }
     } finally {
       closeRs(rs);
-      closePrepStmt(prepStmt);
     }
-    return false;
+    return ret;
   }
 
-  public Integer getGachaPrice(String gachaName) {
+  /**
+   * Load all linked chests grouped by gacha id.
+   * @param GachaPlusConnection c
+   * @return Map
+   */
+  static Map<Integer, List<GachaPlusDefinition.ChestLink>> loadChests(GachaPlusConnection c) throws SQLException {
     PreparedStatement prepStmt = null;
     ResultSet rs = null;
-    Integer gachaPrice = null;
+    Map<Integer, List<GachaPlusDefinition.ChestLink>> ret = new HashMap<Integer, List<GachaPlusDefinition.ChestLink>>();
     try {
-      prepStmt = getCon().prepareStatement("SELECT gacha_price FROM gacha WHERE gacha_name = ?;");
-      prepStmt.setString(1, gachaName);
+      prepStmt = c.prepare("SELECT gacha_id, position, chest_x, chest_y, chest_z FROM gacha_chest ORDER BY gacha_id, position");
       rs = prepStmt.executeQuery();
       while(rs.next()){
-        gachaPrice = rs.getInt(1);
+        ret.computeIfAbsent(rs.getInt(1), k -> new ArrayList<GachaPlusDefinition.ChestLink>())
+          .add(new GachaPlusDefinition.ChestLink(rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5)));
       }
+    } finally {
       closeRs(rs);
-      closePrepStmt(prepStmt);
-    } catch (SQLException e) {
-      GachaPlusUtility.logStackTrace(e);
     }
-    return gachaPrice;
+    return ret;
+  }
+
+  private static GachaPlusLootTable toLootTable(List<GachaPlusLootEntry> entries) {
+    return entries == null ? GachaPlusLootTable.EMPTY : new GachaPlusLootTable(entries);
+  }
+
+  /**
+   * Replace the loot entry of a slot. Runs on the writer thread.
+   * Delete and insert keep the statement portable across backends.
+   * @param GachaPlusConnection c
+   * @param Integer gachaId
+   * @param GachaPlusLootEntry entry Weight of 0 or less only deletes.
+   * @return boolean true:Success false:Failure
+   */
+  private static boolean updateLoot(GachaPlusConnection c, Integer gachaId, GachaPlusLootEntry entry) throws SQLException {
+    PreparedStatement prepStmt = c.prepare("DELETE FROM gacha_loot WHERE gacha_id = ? AND slot = ?");
+    prepStmt.setInt(1, gachaId);
+    prepStmt.setInt(2, entry.getSlot());
+    prepStmt.executeUpdate();
+    if(entry.getWeight() <= 0) {
+      return true;
+    }
+
+    prepStmt = c.prepare("INSERT INTO gacha_loot(gacha_id, slot, weight, rarity) VALUES (?,?,?,?)");
+    prepStmt.setInt(1, gachaId);
+    prepStmt.setInt(2, entry.getSlot());
+    prepStmt.setDouble(3, entry.getWeight());
+    if(entry.getRarity() == null) {
+      prepStmt.setNull(4, Types.VARCHAR);
+    } else {
+      prepStmt.setString(4, entry.getRarity());
+    }
+    prepStmt.executeUpdate();
+    return true;
+  }
+
+  /**
+   * Set the loot entry of a slot in the registry and write it through to the database.
+   * @param String gachaName
+   * @param GachaPlusLootEntry entry Weight of 0 or less removes the entry.
+   * @return CompletableFuture true:Success false:Failure
+   */
+  public CompletableFuture<Boolean> saveLoot(String gachaName, GachaPlusLootEntry entry){
+    return writeThrough(() -> {
+      GachaPlusDefinition def = registry.get(gachaName);
+      if(def == null || def.getId() == null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      Integer gachaId = def.getId();
+      GachaPlusLootEntry[] prev = new GachaPlusLootEntry[1];
+      registry.update(gachaName, cur -> {
+        prev[0] = getLootEntry(cur, entry.getSlot());
+        return cur.withLoot(cur.getLoot().with(entry));
+      });
+      // No entry before: a weight of 0 removes the one just set.
+      GachaPlusLootEntry restore = prev[0] != null ? prev[0] : new GachaPlusLootEntry(entry.getSlot(), 0, null);
+      return writeOrUndo("db.update_loot", c -> updateLoot(c, gachaId, entry),
+        () -> registry.update(gachaName, cur -> cur.withLoot(cur.getLoot().with(restore))));
+    });
+  }
+
+  /**
+   * Register gacha in the registry and write it through to the database.
+   * @return CompletableFuture Gacha id, null when the name is taken or the row could not be written.
+   */
+  public CompletableFuture<Integer> registerGacha(String gachaName, String gachaDisplayName, Integer gachaPrice, String worldName, Integer signX, Integer signY, Integer signZ){
+    return writeThrough(() -> {
+      GachaPlusDefinition created = new GachaPlusDefinition(null, gachaName, gachaDisplayName, gachaPrice, worldName, signX, signY, signZ, 0, 0, 0);
+      // Two regions may place a sign with the same name at once; the first one wins.
+      if(registry.putIfAbsent(created) != null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      return insertGachaAsync(gachaName, gachaDisplayName, gachaPrice, worldName, signX, signY, signZ)
+        .thenApplyAsync(gachaId -> {
+          // Only touch the entry of this sign: a reload may have replaced it in between.
+          if(gachaId == null) {
+            // Roll back the registry if the row could not be written.
+            registry.remove(gachaName, cur -> cur.isPendingAt(worldName, signX, signY, signZ));
+            return null;
+          }
+          registry.update(gachaName, cur -> cur.isPendingAt(worldName, signX, signY, signZ) ? cur.withId(gachaId) : cur);
+          return gachaId;
+        }, gacha.getMainThreadExecutor());
+    });
+  }
+
+  /**
+   * Link gacha chest in the registry and write it through to the database.
+   * @param String gachaName
+   * @param int position Position of the chest, 0 is the first one.
+   * @return CompletableFuture true:Success false:Failure
+   */
+  public CompletableFuture<Boolean> saveGachaChest(String gachaName, int position, Integer chestX, Integer chestY, Integer chestZ){
+    return writeThrough(() -> {
+      GachaPlusDefinition.ChestLink[] prev = new GachaPlusDefinition.ChestLink[1];
+      if(registry.update(gachaName, cur -> {
+        prev[0] = cur.getChest(position);
+        return cur.withChest(position, chestX, chestY, chestZ);
+      }) == null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      return writeOrUndo("db.update_chest", c -> updateGachaChest(c, gachaName, position, chestX, chestY, chestZ),
+        () -> registry.update(gachaName, cur -> prev[0] != null
+          ? cur.withChest(position, prev[0].getX(), prev[0].getY(), prev[0].getZ())
+          : cur.withoutChest(position)));
+    });
+  }
+
+  /**
+   * Unlink gacha chest in the registry and write it through to the database.
+   * The loot entries of its slots go with it, the other chests keep their slots.
+   * @param String gachaName
+   * @param int position
+   * @return CompletableFuture true:Success false:Failure
+   */
+  public CompletableFuture<Boolean> removeGachaChest(String gachaName, int position){
+    return writeThrough(() -> {
+      GachaPlusDefinition[] prev = new GachaPlusDefinition[1];
+      registry.update(gachaName, cur -> {
+        prev[0] = cur;
+        return cur.getChest(position) != null ? cur.withoutChest(position) : cur;
+      });
+      GachaPlusDefinition.ChestLink link = prev[0] == null ? null : prev[0].getChest(position);
+      if(link == null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      // The chest and the loot entries of its slots come back together.
+      return writeOrUndo("db.delete_chest", c -> deleteGachaChest(c, gachaName, position),
+        () -> registry.update(gachaName, cur -> {
+          GachaPlusLootTable loot = cur.getLoot();
+          for(GachaPlusLootEntry e: prev[0].getLoot().getEntries()) {
+            if(e.getSlot() >= link.getFirstSlot() && e.getSlot() < link.getFirstSlot() + GachaPlusPool.SLOTS_PER_CHEST) {
+              loot = loot.with(e);
+            }
+          }
+          return cur.withChest(position, link.getX(), link.getY(), link.getZ()).withLoot(loot);
+        }));
+    });
+  }
+
+  /**
+   * Remove gacha from the registry and write it through to the database.
+   * @return CompletableFuture true:Success false:Failure
+   */
+  public CompletableFuture<Boolean> removeGacha(String gachaName){
+    return writeThrough(() -> {
+      GachaPlusDefinition def = registry.remove(gachaName);
+      if(def != null && def.getId() != null && gacha.getPity() != null) {
+        gacha.getPity().forget(def.getId());
+      }
+      return writeOrUndo("db.delete", c -> deleteGacha(c, gachaName), () -> {
+        if(def != null) {
+          registry.putIfAbsent(def);
+        }
+      });
+    });
+  }
+
+  /**
+   * Get the loot entry of a slot.
+   * @param GachaPlusDefinition def
+   * @param int slot
+   * @return GachaPlusLootEntry|null
+   */
+  private static GachaPlusLootEntry getLootEntry(GachaPlusDefinition def, int slot) {
+    for(GachaPlusLootEntry e: def.getLoot().getEntries()) {
+      if(e.getSlot() == slot) {
+        return e;
+      }
+    }
+    return null;
   }
 }
@@ -0,0 +1,293 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * GachaPlusDefinition
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusDefinition {
+  private final Integer id;
+  private final String name;
+  private final String displayName;
+  private final int price;
+  private final String worldName;
+  private final int signX;
+  private final int signY;
+  private final int signZ;
+  private final List<ChestLink> chests;
+  private final GachaPlusLootTable loot;
+
+  /**
+   * A chest linked to the gacha. Slots of the chest at position n are
+   * n * GachaPlusPool.SLOTS_PER_CHEST and up, so unlinking a chest does not move the others.
+   */
+  public static final class ChestLink {
+    private final int position;
+    private final int x;
+    private final int y;
+    private final int z;
+
+    /**
+     * Constructor of ChestLink.
+     * @param int position
+     * @param int x
+     * @param int y
+     * @param int z
+     */
+    public ChestLink(int position, int x, int y, int z) {
+      this.position = position;
+      this.x = x;
+      this.y = y;
+      this.z = z;
+    }
+
+    public int getPosition() {
+      return position;
+    }
+
+    public int getX() {
+      return x;
+    }
+
+    public int getY() {
+      return y;
+    }
+
+    public int getZ() {
+      return z;
+    }
+
+    /**
+     * First slot of the chest in the loot table.
+     * @return int
+     */
+    public int getFirstSlot() {
+      return position * GachaPlusPool.SLOTS_PER_CHEST;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof ChestLink)) {
+        return false;
+      }
+      ChestLink other = (ChestLink)o;
+      return position == other.position && x == other.x && y == other.y && z == other.z;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((position * 31 + x) * 31 + y) * 31 + z;
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusDefinition with at most one chest.
+   * @param int chestX 0,0,0 means no chest.
+   */
+  public GachaPlusDefinition(Integer id, String name, String displayName, int price, String worldName, int signX, int signY, int signZ, int chestX, int chestY, int chestZ) {
+    this(id, name, displayName, price, worldName, signX, signY, signZ,
+            chestX == 0 && chestY == 0 && chestZ == 0 ? Collections.<ChestLink>emptyList() : Collections.singletonList(new ChestLink(0, chestX, chestY, chestZ)),
+            GachaPlusLootTable.EMPTY);
+  }
+
+  /**
+   * Constructor of GachaPlusDefinition.
+   * @param List chests Linked chests.
+   * @param GachaPlusLootTable loot Empty table means every chest slot has the same chance.
+   */
+  public GachaPlusDefinition(Integer id, String name, String displayName, int price, String worldName, int signX, int signY, int signZ, List<ChestLink> chests, GachaPlusLootTable loot) {
+    this.id = id;
+    this.name = name;
+    this.displayName = displayName;
+    this.price = price;
+    this.worldName = worldName;
+    this.signX = signX;
+    this.signY = signY;
+    this.signZ = signZ;
+    List<ChestLink> sorted = new ArrayList<ChestLink>(chests);
+    sorted.sort((a, b) -> Integer.compare(a.getPosition(), b.getPosition()));
+    this.chests = Collections.unmodifiableList(sorted);
+    this.loot = loot;
+  }
+
+  /**
+   * Copy that shares the chest list of src, so a pool built from it stays current.
+   * @param GachaPlusDefinition src
+   * @param Integer id
+   * @param GachaPlusLootTable loot
+   */
+  private GachaPlusDefinition(GachaPlusDefinition src, Integer id, GachaPlusLootTable loot) {
+    this.id = id;
+    this.name = src.name;
+    this.displayName = src.displayName;
+    this.price = src.price;
+    this.worldName = src.worldName;
+    this.signX = src.signX;
+    this.signY = src.signY;
+    this.signZ = src.signZ;
+    this.chests = src.chests;
+    this.loot = loot;
+  }
+
+  /**
+   * Copy with the chest at a position linked or moved.
+   * @param int position
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return GachaPlusDefinition
+   */
+  public GachaPlusDefinition withChest(int position, int x, int y, int z) {
+    List<ChestLink> next = new ArrayList<ChestLink>(chests.size() + 1);
+    for(ChestLink link: chests) {
+      if(link.getPosition() != position) {
+        next.add(link);
+      }
+    }
+    next.add(new ChestLink(position, x, y, z));
+    return new GachaPlusDefinition(id, name, displayName, price, worldName, signX, signY, signZ, next, loot);
+  }
+
+  /**
+   * Copy with the chest at a position unlinked, along with the loot entries of its slots.
+   * @param int position
+   * @return GachaPlusDefinition
+   */
+  public GachaPlusDefinition withoutChest(int position) {
+    List<ChestLink> next = new ArrayList<ChestLink>(chests.size());
+    for(ChestLink link: chests) {
+      if(link.getPosition() != position) {
+        next.add(link);
+      }
+    }
+    int from = position * GachaPlusPool.SLOTS_PER_CHEST;
+    return new GachaPlusDefinition(id, name, displayName, price, worldName, signX, signY, signZ, next,
+            loot.without(from, from + GachaPlusPool.SLOTS_PER_CHEST));
+  }
+
+  /**
+   * Copy with a new loot table.
+   * @param GachaPlusLootTable loot
+   * @return GachaPlusDefinition
+   */
+  public GachaPlusDefinition withLoot(GachaPlusLootTable loot) {
+    return new GachaPlusDefinition(this, id, loot);
+  }
+
+  /**
+   * Get gacha id.
+   * @return Integer|null null until the row has been inserted.
+   */
+  public Integer getId() {
+    return id;
+  }
+
+  /**
+   * Copy with the id of the inserted row.
+   * @param Integer id
+   * @return GachaPlusDefinition
+   */
+  public GachaPlusDefinition withId(Integer id) {
+    return new GachaPlusDefinition(this, id, loot);
+  }
+
+  /**
+   * Determine whether this is the gacha of a sign that has not been inserted yet.
+   * @param String worldName
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return boolean
+   */
+  boolean isPendingAt(String worldName, int x, int y, int z) {
+    return id == null && this.worldName.equals(worldName) && signX == x && signY == y && signZ == z;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDisplayName() {
+    return displayName;
+  }
+
+  public int getPrice() {
+    return price;
+  }
+
+  public String getWorldName() {
+    return worldName;
+  }
+
+  public int getSignX() {
+    return signX;
+  }
+
+  public int getSignY() {
+    return signY;
+  }
+
+  public int getSignZ() {
+    return signZ;
+  }
+
+  /**
+   * Linked chests ordered by position. Never modified: copies that keep the
+   * chests share it, and a relink or a reload replaces it.
+   * @return List
+   */
+  public List<ChestLink> getChests() {
+    return chests;
+  }
+
+  /**
+   * Get the chest at a position.
+   * @param int position
+   * @return ChestLink|null
+   */
+  public ChestLink getChest(int position) {
+    for(ChestLink link: chests) {
+      if(link.getPosition() == position) {
+        return link;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Lowest free position, where the next linked chest goes.
+   * @return int
+   */
+  public int getFreeChestPosition() {
+    int position = 0;
+    for(ChestLink link: chests) {
+      if(link.getPosition() != position) {
+        break;
+      }
+      position++;
+    }
+    return position;
+  }
+
+  public GachaPlusLootTable getLoot() {
+    return loot;
+  }
+
+  /**
+   * Get chest location. Chests always live in the same world as the sign.
+   * @param World world
+   * @param ChestLink link
+   * @return Location
+   */
+  public static Location getChestLocation(World world, ChestLink link) {
+    return new Location(world, link.getX(), link.getY(), link.getZ());
+  }
+}
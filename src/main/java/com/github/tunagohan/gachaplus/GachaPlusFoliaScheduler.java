@@ -0,0 +1,116 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * GachaPlusFoliaScheduler
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusFoliaScheduler implements GachaPlusScheduler {
+  private static final String PACKAGE = "io.papermc.paper.threadedregions.scheduler.";
+
+  private final GachaPlus gacha;
+  private final Object globalScheduler;
+  private final Object regionScheduler;
+  private final Object asyncScheduler;
+  private final Method globalExecute;
+  private final Method globalRunAtFixedRate;
+  private final Method regionExecute;
+  private final Method entityGetScheduler;
+  private final Method entityExecute;
+  private final Method asyncRunAtFixedRate;
+  private final Method taskCancel;
+  private final Method isOwnedByCurrentRegion;
+
+  /**
+   * Constructor of GachaPlusFoliaScheduler.
+   * The plugin is built against the Spigot API, so the Folia schedulers are
+   * looked up once here and called through reflection.
+   * @param GachaPlus gacha
+   */
+  public GachaPlusFoliaScheduler(GachaPlus gacha) {
+    this.gacha = gacha;
+    try {
+      Class<?> global = Class.forName(PACKAGE + "GlobalRegionScheduler");
+      Class<?> region = Class.forName(PACKAGE + "RegionScheduler");
+      Class<?> entity = Class.forName(PACKAGE + "EntityScheduler");
+      Class<?> async = Class.forName(PACKAGE + "AsyncScheduler");
+      Class<?> task = Class.forName(PACKAGE + "ScheduledTask");
+      Server server = gacha.getServer();
+      globalScheduler = Server.class.getMethod("getGlobalRegionScheduler").invoke(server);
+      regionScheduler = Server.class.getMethod("getRegionScheduler").invoke(server);
+      asyncScheduler = Server.class.getMethod("getAsyncScheduler").invoke(server);
+      globalExecute = global.getMethod("execute", Plugin.class, Runnable.class);
+      globalRunAtFixedRate = global.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class);
+      regionExecute = region.getMethod("execute", Plugin.class, Location.class, Runnable.class);
+      entityGetScheduler = Entity.class.getMethod("getScheduler");
+      entityExecute = entity.getMethod("execute", Plugin.class, Runnable.class, Runnable.class, long.class);
+      asyncRunAtFixedRate = async.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class, TimeUnit.class);
+      taskCancel = task.getMethod("cancel");
+      isOwnedByCurrentRegion = Server.class.getMethod("isOwnedByCurrentRegion", Location.class);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Folia scheduler API not found", e);
+    }
+  }
+
+  private static Object invoke(Method method, Object target, Object... args) {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new IllegalStateException(cause);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Task task(Object scheduled) {
+    return () -> invoke(taskCancel, scheduled);
+  }
+
+  @Override
+  public void runGlobal(Runnable task) {
+    invoke(globalExecute, globalScheduler, gacha, task);
+  }
+
+  @Override
+  public void runAt(Location loc, Runnable task) {
+    invoke(regionExecute, regionScheduler, gacha, loc, task);
+  }
+
+  @Override
+  public void runFor(Entity entity, Runnable task) {
+    invoke(entityExecute, invoke(entityGetScheduler, entity), gacha, task, null, 1L);
+  }
+
+  @Override
+  public Task runTimer(Runnable task, long delayTicks, long periodTicks) {
+    Consumer<Object> run = t -> task.run();
+    // Folia rejects a delay below one tick.
+    return task(invoke(globalRunAtFixedRate, globalScheduler, gacha, run, Math.max(1L, delayTicks), Math.max(1L, periodTicks)));
+  }
+
+  @Override
+  public Task runTimerAsync(Runnable task, long delayTicks, long periodTicks) {
+    Consumer<Object> run = t -> task.run();
+    return task(invoke(asyncRunAtFixedRate, asyncScheduler, gacha, run, delayTicks * 50L, Math.max(1L, periodTicks) * 50L, TimeUnit.MILLISECONDS));
+  }
+
+  @Override
+  public boolean isOwnedByCurrentRegion(Location loc) {
+    return (Boolean)invoke(isOwnedByCurrentRegion, gacha.getServer(), loc);
+  }
+}
@@ -0,0 +1,131 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * GachaPlusH2Storage
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusH2Storage implements GachaPlusStorage {
+  private final ConfigurationSection config;
+  private final File dataFolder;
+
+  /**
+   * Constructor of GachaPlusH2Storage.
+   * Embedded H2 file database, a local stand-in for the MySQL backend.
+   * @param ConfigurationSection config
+   * @param File dataFolder
+   */
+  public GachaPlusH2Storage(ConfigurationSection config, File dataFolder) {
+    this.config = config;
+    this.dataFolder = dataFolder;
+  }
+
+  @Override
+  public String getName() {
+    return "h2";
+  }
+
+  @Override
+  public Connection open() throws Exception {
+    if(!dataFolder.exists()){
+      dataFolder.mkdir();
+    }
+    Class.forName("org.h2.Driver");
+    String url = "jdbc:h2:" + dataFolder.getAbsolutePath() + File.separator + "h2";
+    Connection c = DriverManager.getConnection(url, "sa", "");
+    c.setAutoCommit(true);
+    return c;
+  }
+
+  @Override
+  public List<List<String>> getMigrations() {
+    return Arrays.asList(
+      // 1: Tables as created before versioning, so older databases pass through unchanged.
+      Arrays.asList(
+      "CREATE TABLE IF NOT EXISTS gacha ("
+              + "  id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY"
+              + "  ,gacha_name VARCHAR(64) NOT NULL"
+              + "  ,gacha_display_name VARCHAR(255) NOT NULL"
+              + "  ,gacha_price INTEGER NOT NULL"
+              + "  ,world_name VARCHAR(64) NOT NULL"
+              + "  ,sign_x INTEGER NOT NULL"
+              + "  ,sign_y INTEGER NOT NULL"
+              + "  ,sign_z INTEGER NOT NULL"
+              + "  ,chest_x INTEGER NOT NULL DEFAULT 0"
+              + "  ,chest_y INTEGER NOT NULL DEFAULT 0"
+              + "  ,chest_z INTEGER NOT NULL DEFAULT 0"
+              + "  ,updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP"
+              + "  ,created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP"
+              + ")"
+      ,"CREATE UNIQUE INDEX IF NOT EXISTS gacha_name_uindex ON gacha (gacha_name)"
+      ,"CREATE UNIQUE INDEX IF NOT EXISTS world_name_sign_xyz_uindex ON gacha (world_name, sign_x, sign_y, sign_z)"
+      ,"CREATE UNIQUE INDEX IF NOT EXISTS world_name_chest_xyz_uindex ON gacha (world_name, chest_x, chest_y, chest_z)"
+      ,"CREATE TABLE IF NOT EXISTS gacha_pull ("
+              + "  id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY"
+              + "  ,player_uuid CHAR(36) NOT NULL"
+              + "  ,gacha_id INTEGER"
+              + "  ,slot INTEGER NOT NULL"
+              + "  ,item_fingerprint VARCHAR(255)"
+              + "  ,price INTEGER NOT NULL"
+              + "  ,pulled_at BIGINT NOT NULL"
+              + ")"
+      ,"CREATE INDEX IF NOT EXISTS gacha_pull_player_index ON gacha_pull (player_uuid, pulled_at)"
+      ,"CREATE INDEX IF NOT EXISTS gacha_pull_gacha_index ON gacha_pull (gacha_id, pulled_at)"
+      ,"CREATE TABLE IF NOT EXISTS gacha_loot ("
+              + "  gacha_id INTEGER NOT NULL"
+              + "  ,slot INTEGER NOT NULL"
+              + "  ,weight DOUBLE PRECISION NOT NULL"
+              + "  ,rarity VARCHAR(64)"
+              + "  ,PRIMARY KEY (gacha_id, slot)"
+              + ")"
+      ,"CREATE TABLE IF NOT EXISTS gacha_pity ("
+              + "  player_uuid CHAR(36) NOT NULL"
+              + "  ,gacha_id INTEGER NOT NULL"
+              + "  ,pulls INTEGER NOT NULL"
+              + "  ,PRIMARY KEY (player_uuid, gacha_id)"
+              + ")"
+      ),
+      // 2: Unset chests were 0,0,0 under a unique index. NULLs never collide.
+      Arrays.asList(
+      "ALTER TABLE gacha ALTER COLUMN chest_x SET NULL"
+      ,"ALTER TABLE gacha ALTER COLUMN chest_y SET NULL"
+      ,"ALTER TABLE gacha ALTER COLUMN chest_z SET NULL"
+      ,"ALTER TABLE gacha ALTER COLUMN chest_x SET DEFAULT NULL"
+      ,"ALTER TABLE gacha ALTER COLUMN chest_y SET DEFAULT NULL"
+      ,"ALTER TABLE gacha ALTER COLUMN chest_z SET DEFAULT NULL"
+      ,"UPDATE gacha SET chest_x = NULL, chest_y = NULL, chest_z = NULL WHERE chest_x = 0 AND chest_y = 0 AND chest_z = 0"
+      // list world:<w> walks this in id order.
+      ,"CREATE INDEX IF NOT EXISTS gacha_world_id_index ON gacha (world_name, id)"
+      ),
+      // 3: Any number of chests per gacha. The chest columns of gacha are no longer read.
+      Arrays.asList(
+      "CREATE TABLE IF NOT EXISTS gacha_chest ("
+              + "  gacha_id INTEGER NOT NULL"
+              + "  ,position INTEGER NOT NULL"
+              + "  ,world_name VARCHAR(64) NOT NULL"
+              + "  ,chest_x INTEGER NOT NULL"
+              + "  ,chest_y INTEGER NOT NULL"
+              + "  ,chest_z INTEGER NOT NULL"
+              + "  ,PRIMARY KEY (gacha_id, position)"
+              + ")"
+      ,"CREATE UNIQUE INDEX IF NOT EXISTS gacha_chest_xyz_uindex ON gacha_chest (world_name, chest_x, chest_y, chest_z)"
+      ,"INSERT INTO gacha_chest SELECT id, 0, world_name, chest_x, chest_y, chest_z FROM gacha WHERE chest_x IS NOT NULL"
+      ,"UPDATE gacha SET chest_x = NULL, chest_y = NULL, chest_z = NULL"
+      )
+    );
+  }
+
+  @Override
+  public int getPoolSize() {
+    return Math.max(1, config.getInt("storage.pool-size", 4));
+  }
+}
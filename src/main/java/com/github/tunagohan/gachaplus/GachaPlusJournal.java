@@ -0,0 +1,239 @@
+package com.github.tunagohan.gachaplus;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * GachaPlusJournal
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusJournal implements Runnable {
+  private static final String BEGIN = "B";
+  private static final String COMMIT = "C";
+  private static final String REFUND = "R";
+  private static final String ABORT = "A";
+
+  private final File file;
+  private final long compactBytes;
+  private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+  private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() << 20);
+  private final Thread thread;
+  // Unsettled ids, owned by the writer thread once started.
+  private final Set<Long> open = new HashSet<Long>();
+  private volatile boolean running = true;
+  private FileChannel channel;
+
+  /**
+   * Pull that began but never committed, found on startup.
+   */
+  public static final class Pending {
+    private final long id;
+    private final UUID player;
+    private final int gachaId;
+    private final double amount;
+
+    private Pending(long id, UUID player, int gachaId, double amount) {
+      this.id = id;
+      this.player = player;
+      this.gachaId = gachaId;
+      this.amount = amount;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public UUID getPlayer() {
+      return player;
+    }
+
+    public int getGachaId() {
+      return gachaId;
+    }
+
+    public double getAmount() {
+      return amount;
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusJournal.
+   * Records are appended by a background thread that fsyncs once per batch,
+   * so a pull never waits for the disk. A crash can lose the records of the
+   * batch being written, which covers at most the pulls of one write.
+   * @param GachaPlus gacha
+   */
+  public GachaPlusJournal(GachaPlus gacha) {
+    this.file = new File(gacha.getDataFolder(), "journal.log");
+    this.compactBytes = gacha.getConfig().getLong("journal.compact-bytes", 1048576L);
+    this.thread = new Thread(this, "GachaPlus-Journal");
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * Read pulls left open by a crash. Call before start.
+   * @return List
+   */
+  public List<Pending> recover() {
+    Map<Long, Pending> open = new LinkedHashMap<Long, Pending>();
+    if(!file.exists()) {
+      return new ArrayList<Pending>();
+    }
+    try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] cols = line.split(" ");
+        try {
+          long id = Long.parseLong(cols[1]);
+          if(cols[0].equals(BEGIN) && cols.length == 5) {
+            open.put(id, new Pending(id, UUID.fromString(cols[2]), Integer.parseInt(cols[3]), Double.parseDouble(cols[4])));
+          } else {
+            open.remove(id);
+          }
+        } catch (RuntimeException e) {
+          // Torn last line after a crash.
+        }
+      }
+    } catch (IOException e) {
+      GachaPlusUtility.logStackTrace(e);
+    }
+    // Still open until a refund record is written, so compaction keeps them.
+    this.open.addAll(open.keySet());
+    return new ArrayList<Pending>(open.values());
+  }
+
+  /**
+   * Open the journal and start the writer thread.
+   * @throws IOException
+   */
+  public void start() throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    thread.start();
+  }
+
+  /**
+   * Record the start of a pull, before the withdrawal.
+   * @param UUID player
+   * @param Integer gachaId
+   * @param double amount
+   * @return long Journal id.
+   */
+  public long begin(UUID player, Integer gachaId, double amount) {
+    long id = nextId.incrementAndGet();
+    queue.add(BEGIN + " " + id + " " + player + " " + (gachaId == null ? 0 : gachaId) + " " + amount + "\n");
+    return id;
+  }
+
+  /**
+   * Record a delivered pull.
+   * @param long id
+   */
+  public void commit(long id) {
+    queue.add(COMMIT + " " + id + "\n");
+  }
+
+  /**
+   * Record a refunded pull.
+   * @param long id
+   */
+  public void refund(long id) {
+    queue.add(REFUND + " " + id + "\n");
+  }
+
+  /**
+   * Record a pull that failed before any money moved.
+   * @param long id
+   */
+  public void abort(long id) {
+    queue.add(ABORT + " " + id + "\n");
+  }
+
+  /**
+   * Writer loop. Everything queued since the last fsync is written and forced together.
+   */
+  @Override
+  public void run() {
+    List<String> batch = new ArrayList<String>();
+    StringBuilder sb = new StringBuilder();
+    while(running || !queue.isEmpty()) {
+      try {
+        String first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if(first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch);
+        for(String record: batch) {
+          sb.append(record);
+          int sp = record.indexOf(' ', 2);
+          long id = Long.parseLong(record.substring(2, sp < 0 ? record.length() - 1 : sp));
+          if(record.startsWith(BEGIN)) {
+            open.add(id);
+          } else {
+            open.remove(id);
+          }
+        }
+        channel.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        channel.force(false);
+
+        // Nothing in flight: every record is settled, so the file can start over.
+        if(open.isEmpty() && channel.size() > compactBytes) {
+          channel.truncate(0);
+          channel.force(true);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        running = false;
+      } catch (Exception e) {
+        GachaPlusUtility.logStackTrace(e);
+      } finally {
+        batch.clear();
+        sb.setLength(0);
+      }
+    }
+  }
+
+  /**
+   * Flush and close. Can be called again when the writer thread outlived the timeout.
+   * @param long timeoutMillis
+   * @return boolean false:The writer thread is still running, the file is left open for it.
+   */
+  public boolean shutdown(long timeoutMillis) {
+    running = false;
+    try {
+      thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if(thread.isAlive()) {
+      return false;
+    }
+    try {
+      if(channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      GachaPlusUtility.logStackTrace(e);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,177 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * GachaPlusListQuery
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusListQuery {
+  private static final int MAX_RADIUS = 10000;
+
+  private final int page;
+  private final String world;
+  private final String prefix;
+  private final String nearWorld;
+  private final int nearX;
+  private final int nearZ;
+  private final int radius;
+
+  /**
+   * One page of the list.
+   */
+  public static final class Page {
+    private final List<String> lines;
+    private final int lastId;
+    private final boolean hasMore;
+
+    Page(List<String> lines, int lastId, boolean hasMore) {
+      this.lines = lines;
+      this.lastId = lastId;
+      this.hasMore = hasMore;
+    }
+
+    public List<String> getLines() {
+      return lines;
+    }
+
+    /**
+     * Smallest id on the page, where the next page starts.
+     * @return int
+     */
+    public int getLastId() {
+      return lastId;
+    }
+
+    public boolean hasMore() {
+      return hasMore;
+    }
+  }
+
+  private GachaPlusListQuery(int page, String world, String prefix, String nearWorld, int nearX, int nearZ, int radius) {
+    this.page = page;
+    this.world = world;
+    this.prefix = prefix;
+    this.nearWorld = nearWorld;
+    this.nearX = nearX;
+    this.nearZ = nearZ;
+    this.radius = radius;
+  }
+
+  /**
+   * Parse [page] [world:w] [name:prefix] [near:radius] in any order.
+   * near is around the sender, so it needs a player.
+   * @param CommandSender sender
+   * @param String[] args
+   * @param int from First argument to read.
+   * @return GachaPlusListQuery|null null on a bad argument.
+   */
+  public static GachaPlusListQuery parse(CommandSender sender, String[] args, int from) {
+    int page = 1;
+    String world = null;
+    String prefix = null;
+    String nearWorld = null;
+    int nearX = 0;
+    int nearZ = 0;
+    int radius = -1;
+    try {
+      for(int i = from; i < args.length; i++) {
+        String arg = args[i];
+        if(arg.startsWith("world:")) {
+          world = arg.substring(6);
+        } else if(arg.startsWith("name:")) {
+          prefix = arg.substring(5);
+        } else if(arg.startsWith("near:")) {
+          if(!(sender instanceof Player)) {
+            return null;
+          }
+          radius = Integer.parseInt(arg.substring(5));
+          Location loc = ((Player)sender).getLocation();
+          nearWorld = loc.getWorld().getName();
+          nearX = loc.getBlockX();
+          nearZ = loc.getBlockZ();
+        } else {
+          page = Integer.parseInt(arg);
+        }
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if(page < 1 || (nearWorld != null && (radius < 0 || radius > MAX_RADIUS))) {
+      return null;
+    }
+    return new GachaPlusListQuery(page, world, prefix, nearWorld, nearX, nearZ, radius);
+  }
+
+  public int getPage() {
+    return page;
+  }
+
+  /**
+   * Filters without the page, to tell whether a saved cursor still applies.
+   * @return String
+   */
+  public String getFilterKey() {
+    return world + "|" + prefix + "|" + nearWorld + "|" + nearX + "|" + nearZ + "|" + radius;
+  }
+
+  /**
+   * Filter arguments for the next page command.
+   * @return String
+   */
+  public String getFilterArgs() {
+    StringBuilder sb = new StringBuilder();
+    if(world != null) {
+      sb.append(" world:").append(world);
+    }
+    if(prefix != null) {
+      sb.append(" name:").append(prefix);
+    }
+    if(nearWorld != null) {
+      sb.append(" near:").append(radius);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Build the WHERE clause. Every filter is a range or equality on an indexed column:
+   * the name prefix is a range on gacha_name, near is a box on (world_name, sign_x)
+   * narrowed to a circle.
+   * @param List params Receives the parameters in order.
+   * @return String Clause starting with " WHERE", or empty.
+   */
+  String where(List<Object> params) {
+    List<String> conds = new ArrayList<String>();
+    if(world != null) {
+      conds.add("world_name = ?");
+      params.add(world);
+    }
+    if(prefix != null && !prefix.isEmpty()) {
+      conds.add("gacha_name >= ? AND gacha_name < ?");
+      params.add(prefix);
+      params.add(prefix + Character.MAX_VALUE);
+    }
+    if(nearWorld != null) {
+      conds.add("world_name = ? AND sign_x BETWEEN ? AND ? AND sign_z BETWEEN ? AND ?"
+              + " AND (sign_x - ?) * (sign_x - ?) + (sign_z - ?) * (sign_z - ?) <= ?");
+      params.add(nearWorld);
+      params.add(nearX - radius);
+      params.add(nearX + radius);
+      params.add(nearZ - radius);
+      params.add(nearZ + radius);
+      params.add(nearX);
+      params.add(nearX);
+      params.add(nearZ);
+      params.add(nearZ);
+      params.add(radius * radius);
+    }
+    return conds.isEmpty() ? "" : " WHERE " + String.join(" AND ", conds);
+  }
+}
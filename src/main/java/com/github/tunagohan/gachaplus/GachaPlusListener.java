@@ -5,24 +5,29 @@ import net.milkbowl.vault.economy.EconomyResponse;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.Tag;
+import org.bukkit.World;
 import org.bukkit.block.Block;
-import org.bukkit.block.Chest;
+import org.bukkit.block.BlockState;
 import org.bukkit.block.Sign;
-import org.bukkit.block.data.BlockData;
-import org.bukkit.block.data.type.WallSign;
 import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
 import org.bukkit.event.block.SignChangeEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
-import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
-import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
 /*
@@ -51,6 +56,7 @@ public class GachaPlusListener implements Listener{
    */
   @EventHandler(priority=EventPriority.HIGHEST)
   public void onSignChange(SignChangeEvent event) {
+    long start = System.nanoTime();
     try {
       Economy economy = GachaPlus.getEconomy();
 
@@ -82,20 +88,57 @@ public class GachaPlusListener implements Listener{
         GachaPlusUtility.sendMessage(event.getPlayer(), "Please enter the second line of the signboard with one-byte alphanumeric underscore.");
         return;
       }
-
-      Integer gachaId = gacha.getDatabase().getGacha(gachaName, gachaDisplayName, gachaPrice, worldName, x, y, z);
-      if(gachaId == null) {
+      if(gacha.getDatabase().getRegistry().get(gachaName) != null) {
         event.setCancelled(true);
-        throw new Exception("Can not get gacha. gachaName=" + gachaName);
+        GachaPlusUtility.sendMessage(event.getPlayer(), "The gacha name is already used. gacha_name=" + gachaName);
+        return;
       }
 
-      event.setLine(0, ChatColor.translateAlternateColorCodes('&', gacha.getConfig().getString("sign-line1-prefix") + gachaDisplayName));
-      event.setLine(1, ChatColor.translateAlternateColorCodes('&', gacha.getConfig().getString("sign-line2-prefix") + gachaName));
-      event.setLine(2, ChatColor.translateAlternateColorCodes('&', gacha.getConfig().getString("sign-line3")));
+      // Signs are shared by every player, so they use the default locale.
+      GachaPlusMessages messages = gacha.getMessages();
+      event.setLine(0, messages.get("sign-line1-prefix") + ChatColor.translateAlternateColorCodes('&', gachaDisplayName));
+      event.setLine(1, messages.get("sign-line2-prefix") + gachaName);
+      event.setLine(2, messages.get("sign-line3"));
       event.setLine(3, ChatColor.translateAlternateColorCodes('&', economy.format(gachaPrice)));
 
+      Player player = event.getPlayer();
+      String nameLine = event.getLine(1);
+      gacha.getDatabase().registerGacha(gachaName, gachaDisplayName, gachaPrice, worldName, x, y, z)
+        .whenComplete((gachaId, e) -> {
+          if(gachaId != null) {
+            return;
+          }
+          GachaPlusUtility.logStackTrace(e != null ? e : new Exception("Can not get gacha. gachaName=" + gachaName));
+          GachaPlusUtility.sendMessage(player, "Can not register gacha. gacha_name=" + gachaName);
+          // The sign already shows the gacha format: blank it, so no sign is left without a gacha behind it.
+          gacha.getScheduler().runAt(signLoc, () -> clearSign(signLoc, nameLine));
+        });
+
     } catch (Exception e){
       GachaPlusUtility.logStackTrace(e);
+    } finally {
+      gacha.getMetrics().timer("listener.sign_change").stop(start);
+    }
+  }
+
+  /**
+   * Blank a sign whose registration failed. Must run on the thread of the sign's region.
+   * @param Location signLoc
+   * @param String nameLine Second line as written at registration, so a sign edited since is left alone.
+   */
+  private void clearSign(Location signLoc, String nameLine) {
+    try {
+      BlockState state = signLoc.getBlock().getState();
+      if(!(state instanceof Sign) || !Objects.equals(((Sign)state).getLine(1), nameLine)) {
+        return;
+      }
+      Sign sign = (Sign)state;
+      for(int i = 0; i < 4; i++) {
+        sign.setLine(i, "");
+      }
+      sign.update();
+    } catch (Exception e) {
+      GachaPlusUtility.logStackTrace(e);
     }
   }
 
@@ -109,85 +152,268 @@ public class GachaPlusListener implements Listener{
       return;
     }
     Block clickedBlock = event.getClickedBlock();
-    BlockData data = clickedBlock.getBlockData();
-    if (data instanceof Sign || data instanceof WallSign) {
-      signProc(event);
-    }else if(data.getMaterial().equals(Material.CHEST)) {
+    long start = System.nanoTime();
+
+    // Chest clicks only matter while the player is setting a gacha chest.
+    if(GachaPlusUtility.isInPunch(event.getPlayer()) && clickedBlock.getType().equals(Material.CHEST)) {
       chestProc(event);
+      gacha.getMetrics().timer("listener.chest").stop(start);
+      return;
+    }
+
+    GachaPlusDefinition def = getGachaOfSign(clickedBlock);
+    if(def == null) {
+      return;
     }
+    signProc(event, def);
+    gacha.getMetrics().timer("listener.sign").stop(start);
+  }
+
+  /**
+   * Keep gacha signs from being broken by hand; the gacha is removed with /gachaplus delete.
+   * @param BlockBreakEvent event
+   */
+  @EventHandler(priority=EventPriority.HIGH, ignoreCancelled=true)
+  public void onBlockBreak(BlockBreakEvent event) {
+    GachaPlusDefinition def = getGachaOfSign(event.getBlock());
+    if(def == null) {
+      return;
+    }
+    event.setCancelled(true);
+    GachaPlusUtility.sendMessage(event.getPlayer(), "This sign is the gacha " + def.getName() + ". Use /gachaplus delete " + def.getName() + " to remove it.");
+  }
+
+  @EventHandler(priority=EventPriority.HIGH, ignoreCancelled=true)
+  public void onBlockExplode(BlockExplodeEvent event) {
+    event.blockList().removeIf(b -> getGachaOfSign(b) != null);
+  }
+
+  @EventHandler(priority=EventPriority.HIGH, ignoreCancelled=true)
+  public void onEntityExplode(EntityExplodeEvent event) {
+    event.blockList().removeIf(b -> getGachaOfSign(b) != null);
+  }
+
+  /**
+   * Get the gacha of a sign block.
+   * @param Block b
+   * @return GachaPlusDefinition|null null when no gacha is registered there, or the block is no longer a sign.
+   */
+  private GachaPlusDefinition getGachaOfSign(Block b) {
+    // Almost every block is in a chunk without a gacha sign: reject on the chunk key
+    // before reading block data or state.
+    String worldName = b.getWorld().getName();
+    GachaPlusRegistry registry = gacha.getDatabase().getRegistry();
+    if(!registry.hasSignInChunk(worldName, b.getX(), b.getZ())) {
+      return null;
+    }
+    GachaPlusDefinition def = registry.get(worldName, b.getX(), b.getY(), b.getZ());
+    if(def == null || !Tag.ALL_SIGNS.isTagged(b.getType())) {
+      return null;
+    }
+    return def;
   }
 
   /**
    * Sign process.
    * @param PlayerInteractEvent event
+   * @param GachaPlusDefinition def Gacha of the clicked sign.
    */
-  private void signProc(PlayerInteractEvent event) {
+  private void signProc(PlayerInteractEvent event, GachaPlusDefinition def) {
     try {
-      Sign sign = (Sign) event.getClickedBlock().getState();
       Player p = event.getPlayer();
+      event.setCancelled(true);
 
-      Economy economy = GachaPlus.getEconomy();
-
-      Location signLoc = sign.getLocation();
-      if(!gacha.getDatabase().isGacha(signLoc)) {
+      // Drop autoclicker bursts before any economy or chest work.
+      if(!gacha.getRateLimiter().tryAcquire(p.getUniqueId())) {
+        gacha.getMetrics().counter("rate_limited").increment();
         return;
       }
-      event.setCancelled(true);
-
-      String gachaName = sign.getLine(1);
-      Integer gachaPrice = gacha.getDatabase().getGachaPrice(gachaName);
 
       ItemStack item = p.getInventory().getItemInMainHand();
       if(!item.getType().equals(Material.AIR)) {
-        GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', "手に何も持ってない状態でクリックをしてください"));
+        gacha.getMessages().send(p, "empty-hand");
         return;
       }
 
-      if(gachaPrice == null) {
-        GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', "gachaPriceがnullっぽい"));
-        GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', gachaName));
+      // Price and chest come from the in-memory registry, so a pull does no database I/O.
+      // Sneak + right click pulls several times at once.
+      int count = p.isSneaking() ? Math.min(getMaxPullCount(), Math.max(1, gacha.getConfig().getInt("multi-pull.sneak-count", 10))) : 1;
+      pull(p, def, event.getClickedBlock().getWorld(), count);
+
+    } catch (Exception e){
+      GachaPlusUtility.logStackTrace(e);
+    }
+  }
+
+  /**
+   * Pull process. Runs at once when the pool is cached or its chests are in this region;
+   * otherwise the chests are read in their regions and the pull resumes on the player's thread.
+   * @param Player p
+   * @param GachaPlusDefinition def
+   * @param World world World of the gacha.
+   * @param int count Number of pulls.
+   */
+  public void pull(Player p, GachaPlusDefinition def, World world, int count) {
+    try {
+      CompletableFuture<GachaPlusPool> pool = gacha.getChestCache().load(def, world);
+      if(pool.isDone()) {
+        pull(p, def, pool.join(), count);
+        return;
+      }
+      pool.thenAccept(loaded -> gacha.getScheduler().runFor(p, () -> pull(p, def, loaded, count)))
+        .exceptionally(e -> {
+          GachaPlusUtility.logStackTrace(e);
+          return null;
+        });
+    } catch (Exception e){
+      GachaPlusUtility.logStackTrace(e);
+    }
+  }
+
+  /**
+   * Pull process. N pulls are one operation: one price check, one withdrawal,
+   * one addItem and one summary message.
+   * Stages: reserve, withdraw, sample, deliver, commit. A failure after the
+   * withdrawal is refunded, and the journal lets a crash be refunded on startup.
+   * Must run on the player's thread.
+   * @param Player p
+   * @param GachaPlusDefinition def
+   * @param GachaPlusPool pool Contents of the linked chests, null when none exists.
+   * @param int count Number of pulls.
+   */
+  private void pull(Player p, GachaPlusDefinition def, GachaPlusPool pool, int count) {
+    Economy economy = GachaPlus.getEconomy();
+    GachaPlusJournal journal = gacha.getJournal();
+    GachaPlusMessages messages = gacha.getMessages();
+    int gachaPrice = def.getPrice();
+    double totalPrice = (double)gachaPrice * count;
+    long journalId = 0;
+    boolean withdrawn = false;
+    // Set as soon as items reach the player: from then on the pull stands and is never refunded.
+    boolean delivered = false;
+    boolean committed = false;
+    try {
+      // Reserve: everything that can fail without side effects is checked before money moves.
+      // Contents come from the pool of the linked chests, a chest block is only read after an edit.
+      if(pool == null) {
+        messages.send(p, "not-found-chest1");
+        messages.send(p, "not-found-chest2");
         return;
       }
 
-      if(!economy.has(p, gachaPrice)) {
-        GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', "お金が足りません"));
+      long economyStart = System.nanoTime();
+      boolean hasMoney = economy.has(p, totalPrice);
+      if(!hasMoney) {
+        gacha.getMetrics().timer("economy.withdraw").stop(economyStart);
+        messages.send(p, "not-found-money");
         return;
       }
 
-      EconomyResponse r = economy.withdrawPlayer(p, gachaPrice);
+      // Withdraw. Journaled first; the record is fsynced with its batch, not per pull.
+      journalId = journal.begin(p.getUniqueId(), def.getId(), totalPrice);
+      EconomyResponse r = economy.withdrawPlayer(p, totalPrice);
+      gacha.getMetrics().timer("economy.withdraw").stop(economyStart);
       if(!r.transactionSuccess()) {
+        journal.abort(journalId);
         GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', r.errorMessage));
         return;
       }
+      withdrawn = true;
+
+      // Sample, with the player's pity counter. Without a loot table every slot has the same chance and an empty slot is a miss.
+      int[] picks = new int[count];
+      GachaPlusLootEntry[] entries = new GachaPlusLootEntry[count];
+      GachaPlusPity.Advance advance = gacha.getPity().draw(p.getUniqueId(), def, pool.getSlots(), picks, entries, count);
+
+      List<ItemStack> won = new ArrayList<ItemStack>(count);
+      GachaPlusLootEntry lastEntry = null;
+      for(int i = 0; i < count; i++) {
+        ItemStack pickItem = pool.get(picks[i]);
+        if(pickItem != null) {
+          won.add(pickItem.clone());
+          lastEntry = entries[i];
+        }
+      }
 
-      gacha.getCommand();
-
-      Chest chest = gacha.getDatabase().getGachaChest(signLoc);
-      if(chest == null) {
-        GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', gacha.getConfig().getString("not-found-chest1")));
-        GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', gacha.getConfig().getString("not-found-chest2")));
-        return;
+      // Deliver. addItem merges stacks itself; whatever does not fit is dropped at the player's feet.
+      if(!won.isEmpty()) {
+        Collection<ItemStack> rests = p.getInventory().addItem(won.toArray(new ItemStack[0])).values();
+        delivered = true;
+        for(ItemStack rest: rests) {
+          p.getWorld().dropItemNaturally(p.getLocation(), rest);
+        }
+      }
+      delivered = true;
+
+      // Commit. The pity counter only moves for a pull that is kept.
+      journal.commit(journalId);
+      committed = true;
+      gacha.getPity().advance(p.getUniqueId(), advance);
+      for(int i = 0; i < count; i++) {
+        ItemStack pickItem = pool.get(picks[i]);
+        gacha.getPullLog().log(p.getUniqueId(), def.getId(), picks[i], pickItem == null ? null : GachaPlusUtility.getItemFingerprint(pickItem), gachaPrice);
       }
 
-      p.getInventory().getItemInMainHand().setAmount(p.getInventory().getItemInMainHand().getAmount() - 1);
+      GachaPlusMetrics metrics = gacha.getMetrics();
+      metrics.counter("pulls").add(count);
+      metrics.counter("pull_hits").add(won.size());
+      metrics.counter("pull_misses").add(count - won.size());
 
-      Inventory iv = chest.getInventory();
-      int pick = new Random().nextInt(iv.getSize());
-      ItemStack pickItem = iv.getItem(pick);
-      if(pickItem == null) {
-        GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', gacha.getConfig().getString("not-found-pick")));
+      if(count > 1) {
+        messages.send(p, "multi-pull-result", won.size(), count);
         return;
       }
-
-      ItemStack sendItem = pickItem.clone();
-      p.getInventory().addItem(sendItem);
-      GachaPlusUtility.sendMessage(p, ChatColor.translateAlternateColorCodes('&', gacha.getConfig().getString("found-pick")));
+      if(won.isEmpty()) {
+        messages.send(p, "not-found-pick");
+        return;
+      }
+      messages.send(p, "found-pick");
+      if(lastEntry != null && lastEntry.getRarity() != null) {
+        messages.send(p, "found-rarity", lastEntry.getRarity());
+      }
 
     } catch (Exception e){
       GachaPlusUtility.logStackTrace(e);
+      if(delivered) {
+        if(!committed) {
+          journal.commit(journalId);
+        }
+      } else if(withdrawn) {
+        refund(p, totalPrice, journalId);
+      } else if(journalId != 0) {
+        journal.abort(journalId);
+      }
+    }
+  }
+
+  /**
+   * Compensate a failed pull. If the deposit fails too the journal record
+   * stays open and is refunded on the next startup.
+   * @param Player p
+   * @param double amount
+   * @param long journalId
+   */
+  private void refund(Player p, double amount, long journalId) {
+    try {
+      EconomyResponse r = GachaPlus.getEconomy().depositPlayer(p, amount);
+      if(r.transactionSuccess()) {
+        gacha.getJournal().refund(journalId);
+        gacha.getMetrics().counter("refunds").increment();
+        gacha.getMessages().send(p, "refunded");
+      }
+    } catch (Exception e) {
+      GachaPlusUtility.logStackTrace(e);
     }
   }
 
+  /**
+   * Max number of pulls in one multi-pull.
+   * @return int
+   */
+  public int getMaxPullCount() {
+    return Math.max(1, gacha.getConfig().getInt("multi-pull.max", 64));
+  }
+
   /**
    * Chest process.
    * @param PlayerInteractEvent event
@@ -210,16 +436,36 @@ public class GachaPlusListener implements Listener{
       }
 
       String gachaName = GachaPlusUtility.getGachaNameInPunch(p);
+      boolean link = GachaPlusUtility.isLinkPunch(p);
       GachaPlusUtility.removePunch(p, gacha);
       if(gachaName == null) {
         return;
       }
+      GachaPlusDefinition def = gacha.getDatabase().getRegistry().get(gachaName);
+      if(def == null) {
+        return;
+      }
 
+      // modify replaces the first chest, link adds one at the lowest free position.
       Location loc = event.getClickedBlock().getLocation();
-      if(gacha.getDatabase().updateGachaChest(gachaName, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ())) {
-        GachaPlusUtility.sendMessage(p, "Updated. gacha_name=" + gachaName);
+      int position = link ? def.getFreeChestPosition() : 0;
+      GachaPlusDefinition owner = gacha.getDatabase().getRegistry().getByChest(loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+      if(owner != null) {
+        GachaPlusUtility.sendMessage(p, "The chest is already linked. gacha_name=" + owner.getName());
         return;
       }
+      gacha.getDatabase().saveGachaChest(gachaName, position, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ())
+        .thenAcceptAsync(updated -> {
+          if(updated) {
+            GachaPlusUtility.sendMessage(p, "Updated. gacha_name=" + gachaName + " chest=" + position);
+          } else {
+            GachaPlusUtility.sendMessage(p, "Can not link the chest. gacha_name=" + gachaName);
+          }
+        }, gacha.getMainThreadExecutor())
+        .exceptionally(e -> {
+          GachaPlusUtility.logStackTrace(e);
+          return null;
+        });
 
     } catch (Exception e){
       GachaPlusUtility.logStackTrace(e);
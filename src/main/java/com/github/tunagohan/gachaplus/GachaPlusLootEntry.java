@@ -0,0 +1,37 @@
+package com.github.tunagohan.gachaplus;
+
+/*
+ * GachaPlusLootEntry
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusLootEntry {
+  private final int slot;
+  private final double weight;
+  private final String rarity;
+
+  /**
+   * Constructor of GachaPlusLootEntry.
+   * @param int slot Chest slot. An empty slot is a miss.
+   * @param double weight Relative weight, greater than 0.
+   * @param String rarity Rarity label or null.
+   */
+  public GachaPlusLootEntry(int slot, double weight, String rarity) {
+    this.slot = slot;
+    this.weight = weight;
+    this.rarity = rarity;
+  }
+
+  public int getSlot() {
+    return slot;
+  }
+
+  public double getWeight() {
+    return weight;
+  }
+
+  public String getRarity() {
+    return rarity;
+  }
+}
@@ -0,0 +1,230 @@
+package com.github.tunagohan.gachaplus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/*
+ * GachaPlusLootTable
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusLootTable {
+  public static final GachaPlusLootTable EMPTY = new GachaPlusLootTable(Collections.<GachaPlusLootEntry>emptyList());
+
+  private final List<GachaPlusLootEntry> entries;
+  // Alias table (Vose). Column i is kept with probability prob[i], otherwise alias[i] is taken.
+  private final double[] prob;
+  private final int[] alias;
+  private final double totalWeight;
+  private volatile Split split;
+
+  /**
+   * The table cut in two by rarity, for pity. Built once per table and rarity.
+   */
+  public static final class Split {
+    private final String rarity;
+    private final GachaPlusLootTable hit;
+    private final GachaPlusLootTable miss;
+    private final double chance;
+
+    private Split(String rarity, GachaPlusLootTable hit, GachaPlusLootTable miss, double chance) {
+      this.rarity = rarity;
+      this.hit = hit;
+      this.miss = miss;
+      this.chance = chance;
+    }
+
+    /**
+     * Entries of the rarity.
+     * @return GachaPlusLootTable
+     */
+    public GachaPlusLootTable getHit() {
+      return hit;
+    }
+
+    /**
+     * Entries of any other rarity.
+     * @return GachaPlusLootTable
+     */
+    public GachaPlusLootTable getMiss() {
+      return miss;
+    }
+
+    /**
+     * Base chance of the rarity, 0 to 1.
+     * @return double
+     */
+    public double getChance() {
+      return chance;
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusLootTable.
+   * The alias table is built once here, O(n). Tables are immutable, so it is
+   * only rebuilt when the definition gets a new table.
+   * @param List entries Entries with weight greater than 0.
+   */
+  public GachaPlusLootTable(List<GachaPlusLootEntry> entries) {
+    this.entries = Collections.unmodifiableList(new ArrayList<GachaPlusLootEntry>(entries));
+    int n = this.entries.size();
+    this.prob = new double[n];
+    this.alias = new int[n];
+
+    double total = 0;
+    for(GachaPlusLootEntry entry: this.entries) {
+      total += entry.getWeight();
+    }
+    this.totalWeight = total;
+    if(n == 0) {
+      return;
+    }
+
+    double[] scaled = new double[n];
+    int[] small = new int[n];
+    int[] large = new int[n];
+    int smallSize = 0;
+    int largeSize = 0;
+    for(int i = 0; i < n; i++) {
+      scaled[i] = this.entries.get(i).getWeight() * n / total;
+      if(scaled[i] < 1.0) {
+        small[smallSize++] = i;
+      } else {
+        large[largeSize++] = i;
+      }
+    }
+    while(smallSize > 0 && largeSize > 0) {
+      int s = small[--smallSize];
+      int l = large[--largeSize];
+      prob[s] = scaled[s];
+      alias[s] = l;
+      scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+      if(scaled[l] < 1.0) {
+        small[smallSize++] = l;
+      } else {
+        large[largeSize++] = l;
+      }
+    }
+    // Whatever is left is 1 up to rounding error.
+    while(largeSize > 0) {
+      int l = large[--largeSize];
+      prob[l] = 1.0;
+      alias[l] = l;
+    }
+    while(smallSize > 0) {
+      int s = small[--smallSize];
+      prob[s] = 1.0;
+      alias[s] = s;
+    }
+  }
+
+  /**
+   * Draw an entry in O(1).
+   * @param Random random
+   * @return GachaPlusLootEntry|null null when the table is empty.
+   */
+  public GachaPlusLootEntry sample(Random random) {
+    if(entries.isEmpty()) {
+      return null;
+    }
+    return pick(random.nextInt(prob.length), random.nextDouble());
+  }
+
+  /**
+   * Draw an entry in O(1) from a splittable stream, for the simulator.
+   * @param SplittableRandom random
+   * @return GachaPlusLootEntry|null null when the table is empty.
+   */
+  public GachaPlusLootEntry sample(SplittableRandom random) {
+    if(entries.isEmpty()) {
+      return null;
+    }
+    return pick(random.nextInt(prob.length), random.nextDouble());
+  }
+
+  private GachaPlusLootEntry pick(int column, double coin) {
+    return entries.get(coin < prob[column] ? column : alias[column]);
+  }
+
+  /**
+   * Copy with the entry for a slot replaced. A weight of 0 or less removes it.
+   * @param GachaPlusLootEntry entry
+   * @return GachaPlusLootTable
+   */
+  public GachaPlusLootTable with(GachaPlusLootEntry entry) {
+    List<GachaPlusLootEntry> next = new ArrayList<GachaPlusLootEntry>(entries.size() + 1);
+    for(GachaPlusLootEntry e: entries) {
+      if(e.getSlot() != entry.getSlot()) {
+        next.add(e);
+      }
+    }
+    if(entry.getWeight() > 0) {
+      next.add(entry);
+      next.sort((a, b) -> Integer.compare(a.getSlot(), b.getSlot()));
+    }
+    return new GachaPlusLootTable(next);
+  }
+
+  /**
+   * Copy without the entries of slots from to to - 1.
+   * @param int from
+   * @param int to
+   * @return GachaPlusLootTable
+   */
+  public GachaPlusLootTable without(int from, int to) {
+    List<GachaPlusLootEntry> next = new ArrayList<GachaPlusLootEntry>(entries.size());
+    for(GachaPlusLootEntry e: entries) {
+      if(e.getSlot() < from || e.getSlot() >= to) {
+        next.add(e);
+      }
+    }
+    return next.size() == entries.size() ? this : new GachaPlusLootTable(next);
+  }
+
+  /**
+   * Chance of an entry, 0 to 1.
+   * @param GachaPlusLootEntry entry
+   * @return double
+   */
+  public double getChance(GachaPlusLootEntry entry) {
+    return totalWeight <= 0 ? 0 : entry.getWeight() / totalWeight;
+  }
+
+  /**
+   * Split by rarity. The result is cached, so this is free after the first pull.
+   * @param String rarity
+   * @return Split
+   */
+  public Split split(String rarity) {
+    Split cur = split;
+    if(cur != null && cur.rarity.equals(rarity)) {
+      return cur;
+    }
+    List<GachaPlusLootEntry> hit = new ArrayList<GachaPlusLootEntry>();
+    List<GachaPlusLootEntry> miss = new ArrayList<GachaPlusLootEntry>();
+    double hitWeight = 0;
+    for(GachaPlusLootEntry e: entries) {
+      if(rarity.equals(e.getRarity())) {
+        hit.add(e);
+        hitWeight += e.getWeight();
+      } else {
+        miss.add(e);
+      }
+    }
+    cur = new Split(rarity, new GachaPlusLootTable(hit), new GachaPlusLootTable(miss), totalWeight <= 0 ? 0 : hitWeight / totalWeight);
+    split = cur;
+    return cur;
+  }
+
+  public List<GachaPlusLootEntry> getEntries() {
+    return entries;
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+}
@@ -0,0 +1,208 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * GachaPlusMessages
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusMessages {
+  // Message keys read from the top level of config.yml (default locale) and from messages.<locale>.
+  private static final String[] KEYS = {
+    "sign-line1-prefix",
+    "sign-line2-prefix",
+    "sign-line3",
+    "not-found-chest1",
+    "not-found-chest2",
+    "not-found-pick",
+    "found-pick",
+    "found-rarity",
+    "refunded",
+    "multi-pull-result",
+    "not-found-money",
+    "empty-hand",
+    "pull-count-range",
+    "gacha-not-found",
+  };
+
+  private volatile Catalog catalog;
+
+  /**
+   * Compiled templates of one load. Replaced as a whole on reload.
+   */
+  private static final class Catalog {
+    private final Map<String, Template> base;
+    private final Map<String, Map<String, Template>> locales;
+    // Client locale -> templates, so a send does one hash lookup.
+    private final Map<String, Map<String, Template>> resolved = new ConcurrentHashMap<String, Map<String, Template>>();
+
+    private Catalog(Map<String, Template> base, Map<String, Map<String, Template>> locales) {
+      this.base = base;
+      this.locales = locales;
+    }
+
+    private Map<String, Template> resolve(String locale) {
+      if(locale == null || locale.isEmpty()) {
+        return base;
+      }
+      return resolved.computeIfAbsent(locale, l -> {
+        String key = l.toLowerCase(Locale.ROOT);
+        Map<String, Template> ret = locales.get(key);
+        if(ret != null) {
+          return ret;
+        }
+        // en_gb falls back to en, then to any en_xx.
+        int sep = key.indexOf('_');
+        String lang = sep < 0 ? key : key.substring(0, sep);
+        ret = locales.get(lang);
+        if(ret != null) {
+          return ret;
+        }
+        for(Map.Entry<String, Map<String, Template>> e: locales.entrySet()) {
+          if(e.getKey().startsWith(lang + "_")) {
+            return e.getValue();
+          }
+        }
+        return base;
+      });
+    }
+  }
+
+  /**
+   * Message with color codes translated and placeholders split out.
+   * %s and %d are filled in order, %% is a literal percent sign.
+   */
+  private static final class Template {
+    private final String[] parts;
+
+    private Template(String[] parts) {
+      this.parts = parts;
+    }
+
+    private static Template compile(String raw) {
+      String s = ChatColor.translateAlternateColorCodes('&', raw);
+      List<String> parts = new ArrayList<String>();
+      StringBuilder sb = new StringBuilder();
+      for(int i = 0; i < s.length(); i++) {
+        char ch = s.charAt(i);
+        if(ch == '%' && i + 1 < s.length()) {
+          char next = s.charAt(i + 1);
+          if(next == 's' || next == 'd') {
+            parts.add(sb.toString());
+            sb.setLength(0);
+            i++;
+            continue;
+          } else if(next == '%') {
+            sb.append('%');
+            i++;
+            continue;
+          }
+        }
+        sb.append(ch);
+      }
+      parts.add(sb.toString());
+      return new Template(parts.toArray(new String[0]));
+    }
+
+    private String format(Object[] args) {
+      if(parts.length == 1) {
+        return parts[0];
+      }
+      StringBuilder sb = new StringBuilder();
+      for(int i = 0; i < parts.length; i++) {
+        sb.append(parts[i]);
+        if(i < parts.length - 1 && i < args.length) {
+          sb.append(args[i]);
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusMessages.
+   * @param ConfigurationSection config
+   */
+  public GachaPlusMessages(ConfigurationSection config) {
+    load(config);
+  }
+
+  /**
+   * Compile every message. Call on enable and on reload.
+   * Locales under messages only need the keys they translate.
+   * @param ConfigurationSection config
+   */
+  public void load(ConfigurationSection config) {
+    Map<String, Template> base = compile(config, new HashMap<String, Template>());
+    Map<String, Map<String, Template>> locales = new HashMap<String, Map<String, Template>>();
+    ConfigurationSection messages = config.getConfigurationSection("messages");
+    if(messages != null) {
+      for(String locale: messages.getKeys(false)) {
+        ConfigurationSection section = messages.getConfigurationSection(locale);
+        if(section != null) {
+          locales.put(locale.toLowerCase(Locale.ROOT), compile(section, new HashMap<String, Template>(base)));
+        }
+      }
+    }
+    catalog = new Catalog(base, locales);
+  }
+
+  private static Map<String, Template> compile(ConfigurationSection section, Map<String, Template> ret) {
+    for(String key: KEYS) {
+      String raw = section.getString(key);
+      if(raw != null) {
+        ret.put(key, Template.compile(raw));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Message in the default locale.
+   * @param String key
+   * @param Object... args
+   * @return String The key itself when it is not defined.
+   */
+  public String get(String key, Object... args) {
+    return format(catalog.base, key, args);
+  }
+
+  /**
+   * Message in the client locale of the receiver.
+   * @param CommandSender to
+   * @param String key
+   * @param Object... args
+   * @return String The key itself when it is not defined.
+   */
+  public String get(CommandSender to, String key, Object... args) {
+    String locale = to instanceof Player ? ((Player)to).getLocale() : null;
+    return format(catalog.resolve(locale), key, args);
+  }
+
+  /**
+   * Send a message in the client locale of the receiver.
+   * @param CommandSender to
+   * @param String key
+   * @param Object... args
+   */
+  public void send(CommandSender to, String key, Object... args) {
+    GachaPlusUtility.sendMessage(to, get(to, key, args));
+  }
+
+  private static String format(Map<String, Template> templates, String key, Object[] args) {
+    Template t = templates.get(key);
+    return t == null ? key : t.format(args);
+  }
+}
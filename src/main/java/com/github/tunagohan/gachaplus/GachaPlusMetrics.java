@@ -0,0 +1,245 @@
+package com.github.tunagohan.gachaplus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * GachaPlusMetrics
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusMetrics {
+  // Logged stack traces. Static because GachaPlusUtility.logStackTrace is static.
+  private static final LongAdder ERRORS = new LongAdder();
+
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+  private final Map<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+  /**
+   * Latency histogram. Log-linear buckets, 4 per power of two (about 25% precision).
+   * Striped adders keep recording contention free.
+   */
+  public static final class Timer {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private final LongAdder[] buckets = new LongAdder[64 * SUB_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private Timer() {
+      for(int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Record a duration.
+     * @param long nanos
+     */
+    public void record(long nanos) {
+      if(nanos < 0) {
+        nanos = 0;
+      }
+      buckets[index(nanos)].increment();
+      count.increment();
+      sum.add(nanos);
+      max.accumulate(nanos);
+    }
+
+    /**
+     * Record the time elapsed since start.
+     * @param long start System.nanoTime() at the start.
+     */
+    public void stop(long start) {
+      record(System.nanoTime() - start);
+    }
+
+    private static int index(long v) {
+      if(v < SUB_COUNT) {
+        return (int)v;
+      }
+      int exp = 63 - Long.numberOfLeadingZeros(v);
+      int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+      return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long upperBound(int index) {
+      if(index < SUB_COUNT) {
+        return index;
+      }
+      int exp = index / SUB_COUNT + SUB_BITS - 1;
+      int sub = index % SUB_COUNT;
+      return ((long)(SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Approximate quantile in nanos.
+     * @param double q 0 to 1.
+     * @return long
+     */
+    public long quantile(double q) {
+      long total = 0;
+      long[] snapshot = new long[buckets.length];
+      for(int i = 0; i < buckets.length; i++) {
+        snapshot[i] = buckets[i].sum();
+        total += snapshot[i];
+      }
+      if(total == 0) {
+        return 0;
+      }
+      long rank = (long)Math.ceil(q * total);
+      long seen = 0;
+      for(int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if(seen >= rank) {
+          return Math.min(upperBound(i), getMax());
+        }
+      }
+      return getMax();
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getSum() {
+      return sum.sum();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+  }
+
+  /**
+   * Count a logged error.
+   */
+  public static void recordError() {
+    ERRORS.increment();
+  }
+
+  /**
+   * Get a counter, created on first use.
+   * @param String name
+   * @return LongAdder
+   */
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  /**
+   * Get a timer, created on first use.
+   * @param String name
+   * @return Timer
+   */
+  public Timer timer(String name) {
+    return timers.computeIfAbsent(name, k -> new Timer());
+  }
+
+  /**
+   * Wrap a database task with a timer.
+   * @param String name
+   * @param GachaPlusWriter.Task task
+   * @return GachaPlusWriter.Task
+   */
+  public <T> GachaPlusWriter.Task<T> timed(String name, GachaPlusWriter.Task<T> task) {
+    Timer timer = timer(name);
+    return c -> {
+      long start = System.nanoTime();
+      try {
+        return task.apply(c);
+      } finally {
+        timer.stop(start);
+      }
+    };
+  }
+
+  /**
+   * Human readable lines for /gachaplus stats.
+   * @return List
+   */
+  public List<String> format() {
+    List<String> ret = new ArrayList<String>();
+    List<String> names = new ArrayList<String>(counters.keySet());
+    names.sort(null);
+    StringBuilder sb = new StringBuilder("errors=" + ERRORS.sum());
+    for(String name: names) {
+      sb.append(' ').append(name).append('=').append(counters.get(name).sum());
+    }
+    ret.add(sb.toString());
+    names = new ArrayList<String>(timers.keySet());
+    names.sort(null);
+    for(String name: names) {
+      Timer t = timers.get(name);
+      ret.add(String.format(Locale.ROOT, "%s count:%d p50:%.3fms p99:%.3fms max:%.3fms"
+              ,name
+              ,t.getCount()
+              ,t.quantile(0.5) / 1e6
+              ,t.quantile(0.99) / 1e6
+              ,t.getMax() / 1e6
+      ));
+    }
+    return ret;
+  }
+
+  /**
+   * Prometheus text exposition format.
+   * @return String
+   */
+  public String toPrometheus() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# TYPE gachaplus_errors_total counter\n");
+    sb.append("gachaplus_errors_total ").append(ERRORS.sum()).append('\n');
+    List<String> names = new ArrayList<String>(counters.keySet());
+    names.sort(null);
+    for(String name: names) {
+      String metric = "gachaplus_" + sanitize(name) + "_total";
+      sb.append("# TYPE ").append(metric).append(" counter\n");
+      sb.append(metric).append(' ').append(counters.get(name).sum()).append('\n');
+    }
+    names = new ArrayList<String>(timers.keySet());
+    names.sort(null);
+    for(String name: names) {
+      Timer t = timers.get(name);
+      String metric = "gachaplus_" + sanitize(name) + "_seconds";
+      sb.append("# TYPE ").append(metric).append(" summary\n");
+      for(double q: new double[]{0.5, 0.9, 0.99, 1.0}) {
+        long v = q == 1.0 ? t.getMax() : t.quantile(q);
+        sb.append(metric).append("{quantile=\"").append(q).append("\"} ").append(v / 1e9).append('\n');
+      }
+      sb.append(metric).append("_sum ").append(t.getSum() / 1e9).append('\n');
+      sb.append(metric).append("_count ").append(t.getCount()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static String sanitize(String name) {
+    return name.replaceAll("[^a-zA-Z0-9_]", "_");
+  }
+
+  /**
+   * Write the Prometheus text file atomically, so a scraper never sees half a file.
+   * @param File file
+   */
+  public void export(File file) {
+    try {
+      File tmp = new File(file.getPath() + ".tmp");
+      Files.write(tmp.toPath(), toPrometheus().getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      GachaPlusUtility.logStackTrace(e);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.github.tunagohan.gachaplus;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.logging.Logger;
+
+/*
+ * GachaPlusMigrator
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public final class GachaPlusMigrator {
+
+  private GachaPlusMigrator() {
+  }
+
+  /**
+   * Bring the schema up to date. Every pending migration runs in its own
+   * transaction together with the version bump, so a failed step is retried
+   * as a whole on the next start.
+   * @param Connection c
+   * @param GachaPlusStorage storage
+   * @param Logger logger
+   * @return int Schema version after migrating.
+   */
+  public static int migrate(Connection c, GachaPlusStorage storage, Logger logger) throws SQLException {
+    List<List<String>> migrations = storage.getMigrations();
+    int version = storage.getSchemaVersion(c);
+    if(version > migrations.size()) {
+      logger.warning("Database schema version " + version + " is newer than this plugin (" + migrations.size() + ").");
+      return version;
+    }
+    boolean autoCommit = c.getAutoCommit();
+    try {
+      while(version < migrations.size()) {
+        c.setAutoCommit(false);
+        try(Statement stmt = c.createStatement()) {
+          for(String sql: migrations.get(version)) {
+            stmt.executeUpdate(sql);
+          }
+          storage.setSchemaVersion(c, version + 1);
+          c.commit();
+        } catch (SQLException e) {
+          c.rollback();
+          throw new SQLException("Migration to schema version " + (version + 1) + " failed.", e);
+        }
+        version++;
+        logger.info("Database schema migrated to version " + version + ".");
+      }
+    } finally {
+      c.setAutoCommit(autoCommit);
+    }
+    return version;
+  }
+}
@@ -0,0 +1,164 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * GachaPlusMysqlStorage
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusMysqlStorage implements GachaPlusStorage {
+  private final ConfigurationSection config;
+  private final String type;
+
+  /**
+   * Constructor of GachaPlusMysqlStorage.
+   * @param ConfigurationSection config
+   * @param String type mysql or mariadb
+   */
+  public GachaPlusMysqlStorage(ConfigurationSection config, String type) {
+    this.config = config;
+    this.type = type;
+  }
+
+  @Override
+  public String getName() {
+    return type;
+  }
+
+  @Override
+  public boolean isShared() {
+    return true;
+  }
+
+  @Override
+  public Connection open() throws Exception {
+    ConfigurationSection conf = config.getConfigurationSection("storage.mysql");
+    if(conf == null) {
+      throw new IllegalStateException("storage.mysql is not configured.");
+    }
+    // Spigot bundles the MySQL driver, which also speaks to MariaDB.
+    String scheme = "mysql";
+    if(type.equals("mariadb") && loadDriver("org.mariadb.jdbc.Driver")) {
+      scheme = "mariadb";
+    } else if(!loadDriver("com.mysql.cj.jdbc.Driver")) {
+      loadDriver("com.mysql.jdbc.Driver");
+    }
+    String url = "jdbc:" + scheme + "://" + conf.getString("host", "localhost") + ":" + conf.getInt("port", 3306)
+            + "/" + conf.getString("database", "gachaplus");
+    String properties = conf.getString("properties", "");
+    if(properties != null && !properties.isEmpty()) {
+      url += "?" + properties;
+    }
+    Connection c = DriverManager.getConnection(url, conf.getString("user", "root"), conf.getString("password", ""));
+    c.setAutoCommit(true);
+    return c;
+  }
+
+  private static boolean loadDriver(String className) {
+    try {
+      Class.forName(className);
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public List<List<String>> getMigrations() {
+    return Arrays.asList(
+      // 1: Tables as created before versioning, so older databases pass through unchanged.
+      Arrays.asList(
+      "CREATE TABLE IF NOT EXISTS gacha ("
+              + "  id INT NOT NULL AUTO_INCREMENT PRIMARY KEY"
+              + "  ,gacha_name VARCHAR(64) NOT NULL"
+              + "  ,gacha_display_name VARCHAR(255) NOT NULL"
+              + "  ,gacha_price INT NOT NULL"
+              + "  ,world_name VARCHAR(64) NOT NULL"
+              + "  ,sign_x INT NOT NULL"
+              + "  ,sign_y INT NOT NULL"
+              + "  ,sign_z INT NOT NULL"
+              + "  ,chest_x INT NOT NULL DEFAULT 0"
+              + "  ,chest_y INT NOT NULL DEFAULT 0"
+              + "  ,chest_z INT NOT NULL DEFAULT 0"
+              + "  ,updated_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP"
+              + "  ,created_at DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP"
+              + "  ,UNIQUE KEY gacha_name_uindex (gacha_name)"
+              + "  ,UNIQUE KEY world_name_sign_xyz_uindex (world_name, sign_x, sign_y, sign_z)"
+              + "  ,UNIQUE KEY world_name_chest_xyz_uindex (world_name, chest_x, chest_y, chest_z)"
+              + ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"
+      ,"CREATE TABLE IF NOT EXISTS gacha_pull ("
+              + "  id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY"
+              + "  ,player_uuid CHAR(36) NOT NULL"
+              + "  ,gacha_id INT NULL"
+              + "  ,slot INT NOT NULL"
+              + "  ,item_fingerprint VARCHAR(255) NULL"
+              + "  ,price INT NOT NULL"
+              + "  ,pulled_at BIGINT NOT NULL"
+              + "  ,KEY gacha_pull_player_index (player_uuid, pulled_at)"
+              + "  ,KEY gacha_pull_gacha_index (gacha_id, pulled_at)"
+              + ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"
+      ,"CREATE TABLE IF NOT EXISTS gacha_loot ("
+              + "  gacha_id INT NOT NULL"
+              + "  ,slot INT NOT NULL"
+              + "  ,weight DOUBLE NOT NULL"
+              + "  ,rarity VARCHAR(64) NULL"
+              + "  ,PRIMARY KEY (gacha_id, slot)"
+              + ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"
+      ,"CREATE TABLE IF NOT EXISTS gacha_pity ("
+              + "  player_uuid CHAR(36) NOT NULL"
+              + "  ,gacha_id INT NOT NULL"
+              + "  ,pulls INT NOT NULL"
+              + "  ,PRIMARY KEY (player_uuid, gacha_id)"
+              + ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"
+      ),
+      // 2: Unset chests were 0,0,0 under a unique index. NULLs never collide.
+      // InnoDB indexes carry the primary key, so id by name or sign is answered from the index.
+      // MySQL commits DDL implicitly, so a failure here can leave the step half done:
+      // every statement must succeed again when the step is retried.
+      Arrays.asList(
+      "ALTER TABLE gacha"
+              + "  MODIFY chest_x INT NULL DEFAULT NULL"
+              + "  ,MODIFY chest_y INT NULL DEFAULT NULL"
+              + "  ,MODIFY chest_z INT NULL DEFAULT NULL"
+      ,"UPDATE gacha SET chest_x = NULL, chest_y = NULL, chest_z = NULL WHERE chest_x = 0 AND chest_y = 0 AND chest_z = 0"
+      // list world:<w> walks this in id order. MySQL has no CREATE INDEX IF NOT EXISTS.
+      ,"SET @gachaplus_ddl = (SELECT IF(COUNT(*) = 0, 'CREATE INDEX gacha_world_id_index ON gacha (world_name, id)', 'DO 0')"
+              + " FROM information_schema.statistics"
+              + " WHERE table_schema = DATABASE() AND table_name = 'gacha' AND index_name = 'gacha_world_id_index')"
+      ,"PREPARE gachaplus_ddl FROM @gachaplus_ddl"
+      ,"EXECUTE gachaplus_ddl"
+      ,"DEALLOCATE PREPARE gachaplus_ddl"
+      ),
+      // 3: Any number of chests per gacha. The chest columns of gacha are no longer read.
+      Arrays.asList(
+      "CREATE TABLE IF NOT EXISTS gacha_chest ("
+              + "  gacha_id INT NOT NULL"
+              + "  ,position INT NOT NULL"
+              + "  ,world_name VARCHAR(64) NOT NULL"
+              + "  ,chest_x INT NOT NULL"
+              + "  ,chest_y INT NOT NULL"
+              + "  ,chest_z INT NOT NULL"
+              + "  ,PRIMARY KEY (gacha_id, position)"
+              + "  ,UNIQUE KEY gacha_chest_xyz_uindex (world_name, chest_x, chest_y, chest_z)"
+              + ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"
+      // Skips rows a failed earlier try already copied.
+      ,"INSERT INTO gacha_chest SELECT g.id, 0, g.world_name, g.chest_x, g.chest_y, g.chest_z FROM gacha g"
+              + " WHERE g.chest_x IS NOT NULL"
+              + " AND NOT EXISTS (SELECT 1 FROM gacha_chest c WHERE c.gacha_id = g.id AND c.position = 0)"
+      ,"UPDATE gacha SET chest_x = NULL, chest_y = NULL, chest_z = NULL"
+      )
+    );
+  }
+
+  @Override
+  public int getPoolSize() {
+    return Math.max(1, config.getInt("storage.pool-size", 4));
+  }
+}
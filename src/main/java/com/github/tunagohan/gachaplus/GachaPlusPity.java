@@ -0,0 +1,573 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+/*
+ * GachaPlusPity
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusPity implements Listener {
+  private static final String SELECT_SQL = "SELECT gacha_id, pulls FROM gacha_pity WHERE player_uuid = ?";
+  private static final String DELETE_SQL = "DELETE FROM gacha_pity WHERE player_uuid = ? AND gacha_id = ?";
+  private static final String INSERT_SQL = "INSERT INTO gacha_pity(player_uuid, gacha_id, pulls) VALUES (?,?,?)";
+
+  // Flags of a counter.
+  private static final int DIRTY = 1;
+  private static final int RESET = 2;
+
+  private final GachaPlus gacha;
+  // player -> gacha id -> {pulls since the pity rarity, flags}.
+  private final Map<UUID, State> players = new ConcurrentHashMap<UUID, State>();
+  private volatile Rule rule;
+  private GachaPlusScheduler.Task flushTask;
+
+  /**
+   * Pity settings: pity.rarity, pity.hard (guaranteed on that pull, 0 disables),
+   * pity.soft-start and pity.soft-step (chance added per pull past soft-start).
+   * Immutable, so a draw sees one reading of the settings whatever /gachaplus reload does.
+   */
+  public static final class Rule {
+    private final String rarity;
+    private final int hard;
+    private final int softStart;
+    private final double softStep;
+
+    private Rule(String rarity, int hard, int softStart, double softStep) {
+      this.rarity = rarity;
+      this.hard = hard;
+      this.softStart = softStart;
+      this.softStep = softStep;
+    }
+
+    /**
+     * Read the pity settings.
+     * @param ConfigurationSection config
+     * @return Rule
+     */
+    public static Rule of(ConfigurationSection config) {
+      return new Rule(config.getString("pity.rarity", ""),
+        Math.max(0, config.getInt("pity.hard", 0)),
+        Math.max(0, config.getInt("pity.soft-start", 0)),
+        Math.max(0, config.getDouble("pity.soft-step", 0)));
+    }
+
+    /**
+     * Determine whether pity applies to the loot table.
+     * @param GachaPlusLootTable loot
+     * @return GachaPlusLootTable.Split|null null when pity is off or the table lacks either side.
+     */
+    public GachaPlusLootTable.Split split(GachaPlusLootTable loot) {
+      if(rarity == null || rarity.isEmpty() || (hard <= 0 && softStart <= 0) || loot.isEmpty()) {
+        return null;
+      }
+      GachaPlusLootTable.Split split = loot.split(rarity);
+      return split.getHit().isEmpty() || split.getMiss().isEmpty() ? null : split;
+    }
+
+    /**
+     * Table the n-th pull since the pity rarity is drawn from.
+     * @param GachaPlusLootTable loot
+     * @param GachaPlusLootTable.Split split
+     * @param int n Pulls since the pity rarity, this one included.
+     * @param DoubleSupplier coin Only called past soft-start.
+     * @return GachaPlusLootTable
+     */
+    public GachaPlusLootTable table(GachaPlusLootTable loot, GachaPlusLootTable.Split split, int n, DoubleSupplier coin) {
+      if(isHard(n)) {
+        return split.getHit();
+      }
+      if(softStart > 0 && n > softStart) {
+        double chance = Math.min(1.0, split.getChance() + softStep * (n - softStart));
+        return coin.getAsDouble() < chance ? split.getHit() : split.getMiss();
+      }
+      return loot;
+    }
+
+    /**
+     * Determine whether the n-th pull since the pity rarity is guaranteed.
+     * @param int n
+     * @return boolean
+     */
+    public boolean isHard(int n) {
+      return hard > 0 && n >= hard;
+    }
+
+    /**
+     * Determine whether an entry resets the counter.
+     * @param GachaPlusLootEntry entry
+     * @return boolean
+     */
+    public boolean isReset(GachaPlusLootEntry entry) {
+      return rarity.equals(entry.getRarity());
+    }
+
+    public String getRarity() {
+      return rarity;
+    }
+
+    public int getHard() {
+      return hard;
+    }
+
+    public int getSoftStart() {
+      return softStart;
+    }
+
+    public double getSoftStep() {
+      return softStep;
+    }
+  }
+
+  /**
+   * Counters of one player. Guarded by itself: a player pulls on its own
+   * region's thread, while the flush and the stored counters arrive on others.
+   */
+  private static final class State {
+    private final GachaPlusBlockIndex.LongMap<int[]> counters = new GachaPlusBlockIndex.LongMap<int[]>();
+    // Pulls made before the stored counters arrived are merged into them.
+    private boolean loaded;
+    // A read is in flight. A failed one is retried by the next use or flush.
+    private boolean loading;
+    // Quit: kept until every counter is loaded and written, then dropped.
+    private boolean quit;
+    // Writes in flight with rows of this player.
+    private int writing;
+  }
+
+  /**
+   * Counter change of one draw, applied by advance once the pull is committed,
+   * so a refunded pull leaves the counter as it was.
+   */
+  public static final class Advance {
+    private final int gachaId;
+    // Pulls after the last pity rarity of the draw, or all of them without one.
+    private final int tail;
+    private final boolean reset;
+
+    private Advance(int gachaId, int tail, boolean reset) {
+      this.gachaId = gachaId;
+      this.tail = tail;
+      this.reset = reset;
+    }
+  }
+
+  /**
+   * One row of gacha_pity handed to the writer.
+   */
+  private static final class Row {
+    private final UUID player;
+    private final int gachaId;
+    private final int pulls;
+
+    private Row(UUID player, int gachaId, int pulls) {
+      this.player = player;
+      this.gachaId = gachaId;
+      this.pulls = pulls;
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusPity.
+   * @param GachaPlus gacha
+   */
+  public GachaPlusPity(GachaPlus gacha) {
+    this.gacha = gacha;
+    configure(gacha.getConfig());
+  }
+
+  /**
+   * Read the pity settings, see Rule.
+   * @param ConfigurationSection config
+   */
+  public void configure(ConfigurationSection config) {
+    rule = Rule.of(config);
+  }
+
+  /**
+   * Current pity settings.
+   * @return Rule
+   */
+  public Rule getRule() {
+    return rule;
+  }
+
+  /**
+   * Load online players and start the periodic flush.
+   */
+  public void start() {
+    for(Player p: gacha.getServer().getOnlinePlayers()) {
+      state(p.getUniqueId());
+    }
+    long flushTicks = gacha.getConfig().getLong("pity.flush-seconds", 60) * 20L;
+    if(flushTicks > 0) {
+      flushTask = gacha.getScheduler().runTimer(this::flush, flushTicks, flushTicks);
+    }
+  }
+
+  /**
+   * Flush everything and stop. Call before the database is finalized.
+   */
+  public void shutdown() {
+    if(flushTask != null) {
+      flushTask.cancel();
+      flushTask = null;
+    }
+    // No load is retried here: its result would arrive after the database is finalized.
+    List<Row> rows = new ArrayList<Row>();
+    for(Map.Entry<UUID, State> e: players.entrySet()) {
+      collect(e.getKey(), e.getValue(), rows);
+    }
+    submit(rows);
+    players.clear();
+  }
+
+  /**
+   * Draw count pulls from the player's counter. Only memory is read, the
+   * counter itself is left to advance.
+   * Falls back to GachaPlusRandom.draw when pity does not apply to the gacha.
+   * @param UUID player
+   * @param GachaPlusDefinition def
+   * @param int[] poolSlots Slots of the pool.
+   * @param int[] slots Picked slot per pull.
+   * @param GachaPlusLootEntry[] entries Drawn entry per pull.
+   * @param int count
+   * @return Advance|null null when pity does not apply.
+   */
+  public Advance draw(UUID player, GachaPlusDefinition def, int[] poolSlots, int[] slots, GachaPlusLootEntry[] entries, int count) {
+    Rule rule = this.rule;
+    GachaPlusLootTable loot = def.getLoot();
+    GachaPlusLootTable.Split split = def.getId() == null ? null : rule.split(loot);
+    if(split == null) {
+      GachaPlusRandom.draw(loot, poolSlots, slots, entries, count);
+      return null;
+    }
+
+    State state = state(player);
+    int start;
+    synchronized(state) {
+      int[] counter = state.counters.get(def.getId());
+      start = counter == null ? 0 : counter[0];
+    }
+    Random random = GachaPlusRandom.get();
+    DoubleSupplier coin = random::nextDouble;
+    int tail = 0;
+    boolean reset = false;
+    for(int i = 0; i < count; i++) {
+      int n = (reset ? 0 : start) + tail + 1;
+      if(rule.isHard(n)) {
+        gacha.getMetrics().counter("pity_hard").increment();
+      }
+      GachaPlusLootEntry entry = rule.table(loot, split, n, coin).sample(random);
+      entries[i] = entry;
+      slots[i] = entry.getSlot();
+      if(rule.isReset(entry)) {
+        tail = 0;
+        reset = true;
+      } else {
+        tail++;
+      }
+    }
+    return new Advance(def.getId(), tail, reset);
+  }
+
+  /**
+   * Advance the player's counter by a committed draw. Only memory is touched.
+   * @param UUID player
+   * @param Advance advance null is ignored.
+   */
+  public void advance(UUID player, Advance advance) {
+    if(advance == null) {
+      return;
+    }
+    State state = state(player);
+    synchronized(state) {
+      int[] counter = counter(state, advance.gachaId);
+      if(advance.reset) {
+        counter[0] = advance.tail;
+        counter[1] |= RESET;
+      } else {
+        counter[0] += advance.tail;
+      }
+      counter[1] |= DIRTY;
+    }
+  }
+
+  /**
+   * Pulls since the pity rarity, for display.
+   * @param UUID player
+   * @param int gachaId
+   * @return int
+   */
+  public int get(UUID player, int gachaId) {
+    State state = players.get(player);
+    if(state == null) {
+      return 0;
+    }
+    synchronized(state) {
+      int[] counter = state.counters.get(gachaId);
+      return counter == null ? 0 : counter[0];
+    }
+  }
+
+  /**
+   * Drop the counters of a deleted gacha. Its rows are deleted with the gacha.
+   * @param int gachaId
+   */
+  public void forget(int gachaId) {
+    for(State state: players.values()) {
+      synchronized(state) {
+        state.counters.remove(gachaId);
+      }
+    }
+  }
+
+  private static int[] counter(State state, int gachaId) {
+    int[] counter = state.counters.get(gachaId);
+    if(counter == null) {
+      counter = new int[2];
+      state.counters.put(gachaId, counter);
+    }
+    return counter;
+  }
+
+  /**
+   * Get the state of a player, loading the stored counters in the background on first use.
+   * @param UUID player
+   * @return State
+   */
+  private State state(UUID player) {
+    State state = players.get(player);
+    if(state == null) {
+      State created = new State();
+      state = players.putIfAbsent(player, created);
+      if(state == null) {
+        state = created;
+      }
+    }
+    load(player, state);
+    return state;
+  }
+
+  /**
+   * Read the stored counters unless they are loaded or being read.
+   * @param UUID player
+   * @param State state
+   */
+  private void load(UUID player, State state) {
+    synchronized(state) {
+      if(state.loaded || state.loading) {
+        return;
+      }
+      state.loading = true;
+    }
+    gacha.getDatabase().readAsync("db.load_pity", c -> select(c, player))
+      .whenComplete((stored, e) -> {
+        if(e != null) {
+          GachaPlusUtility.logStackTrace(e);
+        }
+        List<Row> rows = new ArrayList<Row>();
+        synchronized(state) {
+          state.loading = false;
+          // The read failed: left unloaded, so nothing overwrites the stored counters until a retry succeeds.
+          if(stored == null) {
+            return;
+          }
+          for(Map.Entry<Integer, Integer> entry: stored.entrySet()) {
+            int[] counter = state.counters.get(entry.getKey());
+            if(counter == null) {
+              state.counters.put(entry.getKey(), new int[]{entry.getValue(), 0});
+            } else if((counter[1] & RESET) == 0) {
+              counter[0] += entry.getValue();
+            }
+          }
+          state.loaded = true;
+          if(!state.quit) {
+            return;
+          }
+        }
+        collect(player, state, rows);
+        submit(rows);
+        release(player, state);
+      });
+  }
+
+  /**
+   * Write every changed counter in one writer transaction, and retry the loads that failed.
+   */
+  public void flush() {
+    List<Row> rows = new ArrayList<Row>();
+    for(Map.Entry<UUID, State> e: players.entrySet()) {
+      load(e.getKey(), e.getValue());
+      collect(e.getKey(), e.getValue(), rows);
+    }
+    submit(rows);
+  }
+
+  private void collect(UUID player, State state, List<Row> rows) {
+    synchronized(state) {
+      // Until the stored counters are merged, writing would overwrite them.
+      if(!state.loaded) {
+        return;
+      }
+      int before = rows.size();
+      state.counters.forEach((gachaId, counter) -> {
+        if((counter[1] & DIRTY) != 0) {
+          rows.add(new Row(player, (int)gachaId, counter[0]));
+          counter[1] = 0;
+        }
+      });
+      if(rows.size() > before) {
+        state.writing++;
+      }
+    }
+  }
+
+  /**
+   * Queue the rows. They were taken out of DIRTY when collected, so a failed
+   * write marks them again for the next flush; a quit player is dropped once written.
+   * @param List rows
+   */
+  private void submit(List<Row> rows) {
+    if(rows.isEmpty()) {
+      return;
+    }
+    gacha.getDatabase().write("db.save_pity", c -> save(c, rows))
+      .whenComplete((saved, e) -> {
+        if(e != null) {
+          GachaPlusUtility.logStackTrace(e);
+        }
+        Set<UUID> done = new HashSet<UUID>();
+        for(Row row: rows) {
+          State state = players.get(row.player);
+          if(state == null) {
+            continue;
+          }
+          synchronized(state) {
+            if(done.add(row.player)) {
+              state.writing--;
+            }
+            int[] counter = state.counters.get(row.gachaId);
+            // Marked again even if it moved meanwhile: the next flush writes the current count.
+            if(e != null && counter != null) {
+              counter[1] |= DIRTY;
+            }
+          }
+        }
+        for(UUID player: done) {
+          State state = players.get(player);
+          if(state != null) {
+            release(player, state);
+          }
+        }
+      });
+  }
+
+  /**
+   * Drop the state of a player who quit once nothing of it is left to write.
+   * @param UUID player
+   * @param State state
+   */
+  private void release(UUID player, State state) {
+    synchronized(state) {
+      if(!state.quit || !state.loaded || state.writing > 0) {
+        return;
+      }
+      boolean[] dirty = new boolean[1];
+      state.counters.forEach((gachaId, counter) -> dirty[0] |= (counter[1] & DIRTY) != 0);
+      if(!dirty[0]) {
+        players.remove(player, state);
+      }
+    }
+  }
+
+  private static Map<Integer, Integer> select(GachaPlusConnection c, UUID player) throws SQLException {
+    Map<Integer, Integer> ret = new HashMap<Integer, Integer>();
+    PreparedStatement prepStmt = c.prepare(SELECT_SQL);
+    prepStmt.setString(1, player.toString());
+    try(ResultSet rs = prepStmt.executeQuery()) {
+      while(rs.next()) {
+        ret.put(rs.getInt(1), rs.getInt(2));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Delete and insert keep the statement portable across backends. A zero counter is only deleted.
+   */
+  private static Integer save(GachaPlusConnection c, List<Row> rows) throws SQLException {
+    PreparedStatement delete = c.prepare(DELETE_SQL);
+    for(Row row: rows) {
+      delete.setString(1, row.player.toString());
+      delete.setInt(2, row.gachaId);
+      delete.addBatch();
+    }
+    delete.executeBatch();
+    PreparedStatement insert = c.prepare(INSERT_SQL);
+    int inserted = 0;
+    for(Row row: rows) {
+      if(row.pulls <= 0) {
+        continue;
+      }
+      insert.setString(1, row.player.toString());
+      insert.setInt(2, row.gachaId);
+      insert.setInt(3, row.pulls);
+      insert.addBatch();
+      inserted++;
+    }
+    if(inserted > 0) {
+      insert.executeBatch();
+    }
+    return rows.size();
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR)
+  public void onPlayerJoin(PlayerJoinEvent event) {
+    State state = state(event.getPlayer().getUniqueId());
+    synchronized(state) {
+      state.quit = false;
+    }
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    UUID player = event.getPlayer().getUniqueId();
+    State state = players.get(player);
+    if(state == null) {
+      return;
+    }
+    synchronized(state) {
+      state.quit = true;
+      // Pulls made before the stored counters arrived are written by load once they do.
+      if(!state.loaded) {
+        return;
+      }
+    }
+    List<Row> rows = new ArrayList<Row>();
+    collect(player, state, rows);
+    submit(rows);
+    release(player, state);
+  }
+}
@@ -0,0 +1,63 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.List;
+
+/*
+ * GachaPlusPool
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusPool {
+  // A double chest, the largest inventory a linked chest can have.
+  public static final int SLOTS_PER_CHEST = 54;
+
+  private final List<GachaPlusDefinition.ChestLink> chests;
+  // Loot slot -> item, null for an empty or missing slot.
+  private final ItemStack[] items;
+  // Loot slots that exist in a found chest, drawn uniformly without a loot table.
+  private final int[] slots;
+
+  /**
+   * Constructor of GachaPlusPool.
+   * The contents of every linked chest flattened into one table, so a pull
+   * is one array read whatever the number of chests.
+   * @param List chests Links the pool was built from.
+   * @param ItemStack[] items
+   * @param int[] slots
+   */
+  GachaPlusPool(List<GachaPlusDefinition.ChestLink> chests, ItemStack[] items, int[] slots) {
+    this.chests = chests;
+    this.items = items;
+    this.slots = slots;
+  }
+
+  /**
+   * Determine whether the pool was built from the current links of a gacha.
+   * The same list is the common case; a reload rebuilds equal links.
+   * @param GachaPlusDefinition def
+   * @return boolean
+   */
+  boolean isBuiltFrom(GachaPlusDefinition def) {
+    return chests == def.getChests() || chests.equals(def.getChests());
+  }
+
+  /**
+   * Item of a loot slot. Shared, never modify it.
+   * @param int slot
+   * @return ItemStack|null null for a miss.
+   */
+  public ItemStack get(int slot) {
+    return slot >= 0 && slot < items.length ? items[slot] : null;
+  }
+
+  /**
+   * Loot slots of the found chests.
+   * @return int[] Shared, never modify it.
+   */
+  public int[] getSlots() {
+    return slots;
+  }
+}
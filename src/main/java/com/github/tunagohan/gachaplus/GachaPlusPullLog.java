@@ -0,0 +1,245 @@
+package com.github.tunagohan.gachaplus;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * GachaPlusPullLog
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusPullLog {
+  private static final String INSERT_SQL = "INSERT INTO gacha_pull("
+          + "  player_uuid"
+          + ", gacha_id"
+          + ", slot"
+          + ", item_fingerprint"
+          + ", price"
+          + ", pulled_at"
+          + ") VALUES (?,?,?,?,?,?)";
+
+  private final GachaPlus gacha;
+  private final int flushSize;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+  // Bounded multi-producer single-consumer ring (Vyukov). Slots are preallocated
+  // column arrays, so appending a pull allocates nothing.
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final long[] uuidMost;
+  private final long[] uuidLeast;
+  private final int[] gachaIds;
+  private final int[] slots;
+  private final String[] fingerprints;
+  private final int[] prices;
+  private final long[] pulledAt;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  /**
+   * One row of gacha_pull handed to the writer.
+   */
+  private static final class Row {
+    private long uuidMost;
+    private long uuidLeast;
+    private int gachaId;
+    private int slot;
+    private String fingerprint;
+    private int price;
+    private long pulledAt;
+  }
+
+  /**
+   * Constructor of GachaPlusPullLog.
+   * @param GachaPlus gacha
+   */
+  public GachaPlusPullLog(GachaPlus gacha) {
+    this.gacha = gacha;
+    int capacity = Integer.highestOneBit(Math.max(2, gacha.getConfig().getInt("pull-log.buffer-size", 8192)) - 1) << 1;
+    this.mask = capacity - 1;
+    this.flushSize = Math.max(1, gacha.getConfig().getInt("pull-log.flush-size", 512));
+    this.sequences = new AtomicLongArray(capacity);
+    for(int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.uuidMost = new long[capacity];
+    this.uuidLeast = new long[capacity];
+    this.gachaIds = new int[capacity];
+    this.slots = new int[capacity];
+    this.fingerprints = new String[capacity];
+    this.prices = new int[capacity];
+    this.pulledAt = new long[capacity];
+
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "GachaPlus-PullLog");
+      t.setDaemon(true);
+      return t;
+    });
+    long interval = Math.max(50L, gacha.getConfig().getLong("pull-log.flush-interval-millis", 1000L));
+    scheduler.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Record a pull. Never blocks and never touches the database.
+   * @param UUID player
+   * @param Integer gachaId null while the gacha row is not inserted yet.
+   * @param int slot Picked slot.
+   * @param String fingerprint null on a miss.
+   * @param int price
+   */
+  public void log(UUID player, Integer gachaId, int slot, String fingerprint, int price) {
+    long now = System.currentTimeMillis();
+    int id = gachaId == null ? 0 : gachaId;
+    long pos = tail.get();
+    while(true) {
+      int i = (int)(pos & mask);
+      long dif = sequences.get(i) - pos;
+      if(dif == 0) {
+        if(tail.compareAndSet(pos, pos + 1)) {
+          uuidMost[i] = player.getMostSignificantBits();
+          uuidLeast[i] = player.getLeastSignificantBits();
+          gachaIds[i] = id;
+          slots[i] = slot;
+          fingerprints[i] = fingerprint;
+          prices[i] = price;
+          pulledAt[i] = now;
+          sequences.set(i, pos + 1);
+          break;
+        }
+        pos = tail.get();
+      } else if(dif < 0) {
+        // Buffer is full: hand this row straight to the writer rather than drop it.
+        Row row = new Row();
+        row.uuidMost = player.getMostSignificantBits();
+        row.uuidLeast = player.getLeastSignificantBits();
+        row.gachaId = id;
+        row.slot = slot;
+        row.fingerprint = fingerprint;
+        row.price = price;
+        row.pulledAt = now;
+        List<Row> rows = new ArrayList<Row>(1);
+        rows.add(row);
+        submit(rows);
+        requestFlush();
+        return;
+      } else {
+        pos = tail.get();
+      }
+    }
+    if(pos + 1 - head >= flushSize) {
+      requestFlush();
+    }
+  }
+
+  /**
+   * Ask the flush thread to drain now.
+   */
+  private void requestFlush() {
+    if(flushQueued.compareAndSet(false, true)) {
+      try {
+        scheduler.execute(this::flush);
+      } catch (Exception e) {
+        flushQueued.set(false);
+      }
+    }
+  }
+
+  /**
+   * Drain the ring into batches of flush-size rows. Runs on the flush thread only.
+   */
+  private synchronized void flush() {
+    flushQueued.set(false);
+    try {
+      List<Row> rows = drain();
+      while(!rows.isEmpty()) {
+        submit(rows);
+        rows = drain();
+      }
+    } catch (Exception e) {
+      GachaPlusUtility.logStackTrace(e);
+    }
+  }
+
+  private List<Row> drain() {
+    List<Row> rows = new ArrayList<Row>();
+    while(rows.size() < flushSize) {
+      int i = (int)(head & mask);
+      if(sequences.get(i) != head + 1) {
+        break;
+      }
+      Row row = new Row();
+      row.uuidMost = uuidMost[i];
+      row.uuidLeast = uuidLeast[i];
+      row.gachaId = gachaIds[i];
+      row.slot = slots[i];
+      row.fingerprint = fingerprints[i];
+      row.price = prices[i];
+      row.pulledAt = pulledAt[i];
+      fingerprints[i] = null;
+      sequences.set(i, head + mask + 1);
+      head++;
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * Insert rows in one writer transaction.
+   * @param List rows
+   */
+  private void submit(List<Row> rows) {
+    gacha.getDatabase().write("db.pull_log_insert", c -> insert(c, rows))
+      .exceptionally(e -> {
+        GachaPlusUtility.logStackTrace(e);
+        return null;
+      });
+  }
+
+  private static Integer insert(GachaPlusConnection c, List<Row> rows) throws SQLException {
+    PreparedStatement prepStmt = c.prepare(INSERT_SQL);
+    for(Row row: rows) {
+      prepStmt.setString(1, new UUID(row.uuidMost, row.uuidLeast).toString());
+      if(row.gachaId == 0) {
+        prepStmt.setNull(2, Types.INTEGER);
+      } else {
+        prepStmt.setInt(2, row.gachaId);
+      }
+      prepStmt.setInt(3, row.slot);
+      if(row.fingerprint == null) {
+        prepStmt.setNull(4, Types.VARCHAR);
+      } else {
+        prepStmt.setString(4, row.fingerprint);
+      }
+      prepStmt.setInt(5, row.price);
+      prepStmt.setLong(6, row.pulledAt);
+      prepStmt.addBatch();
+    }
+    prepStmt.executeBatch();
+    return rows.size();
+  }
+
+  /**
+   * Flush everything and stop. Call before the database is finalized.
+   */
+  public void shutdown() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+}
@@ -0,0 +1,89 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * GachaPlusRandom
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public final class GachaPlusRandom {
+  private static volatile Random seeded;
+
+  private GachaPlusRandom() {
+  }
+
+  /**
+   * Configure from config.yml. random.seed set to a number switches to a
+   * deterministic generator for replay and tests, empty means thread-local.
+   * @param ConfigurationSection config
+   */
+  public static void configure(ConfigurationSection config) {
+    String seed = config.getString("random.seed", "");
+    if(seed == null || seed.isEmpty()) {
+      setSeed(null);
+      return;
+    }
+    try {
+      setSeed(Long.parseLong(seed));
+    } catch (NumberFormatException e) {
+      GachaPlusUtility.logStackTrace(e);
+      setSeed(null);
+    }
+  }
+
+  /**
+   * Switch to a deterministic generator, or back to thread-local with null.
+   * @param Long seed
+   */
+  public static void setSeed(Long seed) {
+    seeded = seed == null ? null : new Random(seed);
+  }
+
+  /**
+   * Get the generator for the current thread. Do not keep it across threads.
+   * @return Random
+   */
+  public static Random get() {
+    Random r = seeded;
+    return r != null ? r : ThreadLocalRandom.current();
+  }
+
+  /**
+   * Random int in [0, bound).
+   * @param int bound
+   * @return int
+   */
+  public static int nextInt(int bound) {
+    return get().nextInt(bound);
+  }
+
+  /**
+   * Draw count pulls at once.
+   * Entries are drawn from the loot table, or uniformly over the pool slots when it is empty.
+   * @param GachaPlusLootTable loot
+   * @param int[] poolSlots Slots of the pool.
+   * @param int[] slots Picked slot per pull.
+   * @param GachaPlusLootEntry[] entries Drawn entry per pull, null without a loot table.
+   * @param int count
+   */
+  public static void draw(GachaPlusLootTable loot, int[] poolSlots, int[] slots, GachaPlusLootEntry[] entries, int count) {
+    Random r = get();
+    if(loot.isEmpty()) {
+      for(int i = 0; i < count; i++) {
+        slots[i] = poolSlots[r.nextInt(poolSlots.length)];
+        entries[i] = null;
+      }
+      return;
+    }
+    for(int i = 0; i < count; i++) {
+      GachaPlusLootEntry entry = loot.sample(r);
+      entries[i] = entry;
+      slots[i] = entry.getSlot();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * GachaPlusRateLimiter
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusRateLimiter implements Listener {
+  // Per player theoretical arrival time in nanos (GCRA). This is a token bucket
+  // kept in a single long, so a check is one CAS and never blocks.
+  private final ConcurrentMap<UUID, AtomicLong> buckets = new ConcurrentHashMap<UUID, AtomicLong>();
+  private volatile long intervalNanos;
+  private volatile long toleranceNanos;
+
+  /**
+   * Constructor of GachaPlusRateLimiter.
+   * @param ConfigurationSection config
+   */
+  public GachaPlusRateLimiter(ConfigurationSection config) {
+    configure(config);
+  }
+
+  /**
+   * Read rate-limit.rate (clicks per second, 0 disables) and rate-limit.burst.
+   * @param ConfigurationSection config
+   */
+  public void configure(ConfigurationSection config) {
+    double rate = config.getDouble("rate-limit.rate", 4.0);
+    int burst = Math.max(1, config.getInt("rate-limit.burst", 4));
+    if(rate <= 0) {
+      intervalNanos = 0;
+      toleranceNanos = 0;
+    } else {
+      intervalNanos = (long)(1000000000L / rate);
+      toleranceNanos = intervalNanos * burst;
+    }
+    buckets.clear();
+  }
+
+  /**
+   * Take a token for a click.
+   * @param UUID player
+   * @return boolean true:Allowed false:Too fast
+   */
+  public boolean tryAcquire(UUID player) {
+    long interval = intervalNanos;
+    if(interval == 0) {
+      return true;
+    }
+    long tolerance = toleranceNanos;
+    long now = System.nanoTime();
+    AtomicLong tat = buckets.computeIfAbsent(player, k -> new AtomicLong(now));
+    while(true) {
+      long cur = tat.get();
+      long next = Math.max(cur, now) + interval;
+      if(next - now > tolerance) {
+        return false;
+      }
+      if(tat.compareAndSet(cur, next)) {
+        return true;
+      }
+    }
+  }
+
+  @EventHandler(priority=EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    buckets.remove(event.getPlayer().getUniqueId());
+  }
+}
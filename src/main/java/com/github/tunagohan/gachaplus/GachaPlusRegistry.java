@@ -0,0 +1,245 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/*
+ * GachaPlusRegistry
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusRegistry {
+  // Readers take the current state without a lock, writers copy it and swap it in.
+  private volatile State state = new State();
+
+  /**
+   * Indexes of one version of the registry. Never changed once published.
+   */
+  private static final class State {
+    private final Map<String, GachaPlusDefinition> byName;
+    private final GachaPlusBlockIndex<GachaPlusDefinition> bySign;
+    private final GachaPlusBlockIndex<GachaPlusDefinition> byChest;
+    private final GachaPlusChunkIndex signChunks;
+    private final long version;
+
+    private State() {
+      byName = new HashMap<String, GachaPlusDefinition>();
+      bySign = new GachaPlusBlockIndex<GachaPlusDefinition>();
+      byChest = new GachaPlusBlockIndex<GachaPlusDefinition>();
+      signChunks = new GachaPlusChunkIndex();
+      version = 0;
+    }
+
+    private State(State src, boolean empty) {
+      byName = empty ? new HashMap<String, GachaPlusDefinition>() : new HashMap<String, GachaPlusDefinition>(src.byName);
+      bySign = empty ? new GachaPlusBlockIndex<GachaPlusDefinition>() : src.bySign.copy();
+      byChest = empty ? new GachaPlusBlockIndex<GachaPlusDefinition>() : src.byChest.copy();
+      signChunks = empty ? new GachaPlusChunkIndex() : src.signChunks.copy();
+      version = src.version + 1;
+    }
+
+    private void put(GachaPlusDefinition def) {
+      GachaPlusDefinition prev = byName.put(def.getName(), def);
+      if(prev != null) {
+        unindex(prev);
+      }
+      bySign.put(def.getWorldName(), def.getSignX(), def.getSignY(), def.getSignZ(), def);
+      signChunks.add(def.getWorldName(), def.getSignX(), def.getSignZ());
+      for(GachaPlusDefinition.ChestLink link: def.getChests()) {
+        byChest.put(def.getWorldName(), link.getX(), link.getY(), link.getZ(), def);
+      }
+    }
+
+    private void unindex(GachaPlusDefinition def) {
+      bySign.remove(def.getWorldName(), def.getSignX(), def.getSignY(), def.getSignZ());
+      signChunks.remove(def.getWorldName(), def.getSignX(), def.getSignZ());
+      for(GachaPlusDefinition.ChestLink link: def.getChests()) {
+        // Only drop entries that still point at this gacha.
+        GachaPlusDefinition owner = byChest.get(def.getWorldName(), link.getX(), link.getY(), link.getZ());
+        if(owner != null && owner.getName().equals(def.getName())) {
+          byChest.remove(def.getWorldName(), link.getX(), link.getY(), link.getZ());
+        }
+      }
+    }
+  }
+
+  /**
+   * Get gacha by name.
+   * @param String gachaName
+   * @return GachaPlusDefinition|null
+   */
+  public GachaPlusDefinition get(String gachaName) {
+    return state.byName.get(gachaName);
+  }
+
+  /**
+   * Get gacha by sign location.
+   * @param Location signLoc
+   * @return GachaPlusDefinition|null
+   */
+  public GachaPlusDefinition get(Location signLoc) {
+    return state.bySign.get(signLoc);
+  }
+
+  /**
+   * Get gacha by sign block coordinates.
+   * @param String worldName
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return GachaPlusDefinition|null
+   */
+  public GachaPlusDefinition get(String worldName, int x, int y, int z) {
+    return state.bySign.get(worldName, x, y, z);
+  }
+
+  /**
+   * Get gacha by linked chest block coordinates.
+   * @param String worldName
+   * @param int x
+   * @param int y
+   * @param int z
+   * @return GachaPlusDefinition|null
+   */
+  public GachaPlusDefinition getByChest(String worldName, int x, int y, int z) {
+    return state.byChest.get(worldName, x, y, z);
+  }
+
+  /**
+   * Determine whether the chunk of a block holds any gacha sign.
+   * @param String worldName
+   * @param int x Block x.
+   * @param int z Block z.
+   * @return boolean false:No gacha sign in the chunk.
+   */
+  public boolean hasSignInChunk(String worldName, int x, int z) {
+    return state.signChunks.contains(worldName, x, z);
+  }
+
+  /**
+   * Put gacha. Replaces the entry with the same name.
+   * Copies the indexes, O(n): meant for commands, not for bulk loads.
+   * @param GachaPlusDefinition def
+   */
+  public synchronized void put(GachaPlusDefinition def) {
+    State next = new State(state, false);
+    next.put(def);
+    state = next;
+  }
+
+  /**
+   * Put gacha unless the name is taken.
+   * @param GachaPlusDefinition def
+   * @return GachaPlusDefinition|null The gacha already registered, null when def was put.
+   */
+  public synchronized GachaPlusDefinition putIfAbsent(GachaPlusDefinition def) {
+    GachaPlusDefinition cur = state.byName.get(def.getName());
+    if(cur != null) {
+      return cur;
+    }
+    put(def);
+    return null;
+  }
+
+  /**
+   * Replace gacha with a copy made from the current entry, atomically against other writers.
+   * @param String gachaName
+   * @param UnaryOperator change Returns the new gacha, or the same one to keep it.
+   * @return GachaPlusDefinition|null The new gacha, null when not registered.
+   */
+  public synchronized GachaPlusDefinition update(String gachaName, UnaryOperator<GachaPlusDefinition> change) {
+    GachaPlusDefinition cur = state.byName.get(gachaName);
+    if(cur == null) {
+      return null;
+    }
+    GachaPlusDefinition next = change.apply(cur);
+    if(next != cur) {
+      put(next);
+    }
+    return next;
+  }
+
+  /**
+   * Remove gacha.
+   * @param String gachaName
+   * @return GachaPlusDefinition|null Removed gacha.
+   */
+  public synchronized GachaPlusDefinition remove(String gachaName) {
+    GachaPlusDefinition prev = state.byName.get(gachaName);
+    if(prev != null) {
+      State next = new State(state, false);
+      next.byName.remove(gachaName);
+      next.unindex(prev);
+      state = next;
+    }
+    return prev;
+  }
+
+  /**
+   * Remove gacha if the current entry matches, atomically against other writers.
+   * @param String gachaName
+   * @param Predicate filter
+   * @return GachaPlusDefinition|null Removed gacha.
+   */
+  public synchronized GachaPlusDefinition remove(String gachaName, Predicate<GachaPlusDefinition> filter) {
+    GachaPlusDefinition cur = state.byName.get(gachaName);
+    return cur != null && filter.test(cur) ? remove(gachaName) : null;
+  }
+
+  /**
+   * Replace all gacha.
+   * @param List defs
+   */
+  public synchronized void replaceAll(List<GachaPlusDefinition> defs) {
+    State next = new State(state, true);
+    for(GachaPlusDefinition def: defs) {
+      next.put(def);
+    }
+    state = next;
+  }
+
+  /**
+   * Replace all gacha unless the registry changed since a version was read.
+   * @param List defs
+   * @param long expectedVersion
+   * @return boolean false:Changed in between, nothing replaced.
+   */
+  public synchronized boolean replaceAll(List<GachaPlusDefinition> defs, long expectedVersion) {
+    if(state.version != expectedVersion) {
+      return false;
+    }
+    replaceAll(defs);
+    return true;
+  }
+
+  /**
+   * Modification counter, bumped by every put and remove.
+   * @return long version
+   */
+  public long getVersion() {
+    return state.version;
+  }
+
+  /**
+   * All gacha.
+   * @return List
+   */
+  public List<GachaPlusDefinition> values() {
+    return new ArrayList<GachaPlusDefinition>(state.byName.values());
+  }
+
+  /**
+   * Number of gacha.
+   * @return int size
+   */
+  public int size() {
+    return state.byName.size();
+  }
+}
@@ -0,0 +1,81 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+
+/*
+ * GachaPlusScheduler
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public interface GachaPlusScheduler {
+
+  /**
+   * Handle of a repeating task.
+   */
+  interface Task {
+    void cancel();
+  }
+
+  /**
+   * Run a task that touches no particular block or entity, on the main thread
+   * or the global region.
+   * @param Runnable task
+   */
+  void runGlobal(Runnable task);
+
+  /**
+   * Run a task on the thread that owns the region of a location.
+   * @param Location loc
+   * @param Runnable task
+   */
+  void runAt(Location loc, Runnable task);
+
+  /**
+   * Run a task on the thread that owns an entity. Dropped if the entity is removed first.
+   * @param Entity entity
+   * @param Runnable task
+   */
+  void runFor(Entity entity, Runnable task);
+
+  /**
+   * Run a task repeatedly on the main thread or the global region.
+   * @param Runnable task
+   * @param long delayTicks
+   * @param long periodTicks
+   * @return Task
+   */
+  Task runTimer(Runnable task, long delayTicks, long periodTicks);
+
+  /**
+   * Run a task repeatedly off the server threads.
+   * @param Runnable task
+   * @param long delayTicks
+   * @param long periodTicks
+   * @return Task
+   */
+  Task runTimerAsync(Runnable task, long delayTicks, long periodTicks);
+
+  /**
+   * Determine whether the current thread may touch blocks at a location.
+   * @param Location loc
+   * @return boolean
+   */
+  boolean isOwnedByCurrentRegion(Location loc);
+
+  /**
+   * Create the scheduler of the running server: region threads on Folia, the main thread elsewhere.
+   * @param GachaPlus gacha
+   * @return GachaPlusScheduler
+   */
+  static GachaPlusScheduler create(GachaPlus gacha) {
+    try {
+      Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+    } catch (ClassNotFoundException e) {
+      return new GachaPlusBukkitScheduler(gacha);
+    }
+    gacha.getLogger().info("Region threading detected, using the Folia schedulers");
+    return new GachaPlusFoliaScheduler(gacha);
+  }
+}
@@ -0,0 +1,307 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Logger;
+
+/*
+ * GachaPlusSimulator
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusSimulator {
+  // Pulls one leaf task makes in a row, from a fresh pity counter. Long enough
+  // that the fresh start does not show in the rates, short enough to keep every core busy.
+  private static final long LEAF_PULLS = 1L << 20;
+  // Two-sided 95% normal quantile.
+  private static final double Z = 1.959963984540054;
+
+  private final GachaPlusDefinition def;
+  private final GachaPlusPity.Rule rule;
+  private final GachaPlusLootTable loot;
+  private final GachaPlusLootTable.Split split;
+  // Outcome -> loot slot. Entries of the loot table, or every slot of the linked chests without one.
+  private final int[] slots;
+  // Loot slot -> outcome, -1 for a slot without an entry.
+  private final int[] outcomeBySlot;
+
+  /**
+   * Constructor of GachaPlusSimulator.
+   * Pulls are drawn exactly as GachaPlusPity.draw does, without a player, an
+   * economy or a chest: a slot stands for whatever item sits in it.
+   * @param GachaPlusDefinition def
+   * @param GachaPlusPity.Rule rule
+   */
+  public GachaPlusSimulator(GachaPlusDefinition def, GachaPlusPity.Rule rule) {
+    this.def = def;
+    this.rule = rule;
+    this.loot = def.getLoot();
+    this.split = rule.split(loot);
+    if(!loot.isEmpty()) {
+      List<GachaPlusLootEntry> entries = loot.getEntries();
+      slots = new int[entries.size()];
+      for(int i = 0; i < slots.length; i++) {
+        slots[i] = entries.get(i).getSlot();
+      }
+    } else {
+      List<GachaPlusDefinition.ChestLink> chests = def.getChests();
+      if(chests.isEmpty()) {
+        throw new IllegalStateException("No chest is linked and there is no loot table. gacha_name=" + def.getName());
+      }
+      slots = new int[chests.size() * GachaPlusPool.SLOTS_PER_CHEST];
+      int n = 0;
+      for(GachaPlusDefinition.ChestLink link: chests) {
+        for(int i = 0; i < GachaPlusPool.SLOTS_PER_CHEST; i++) {
+          slots[n++] = link.getFirstSlot() + i;
+        }
+      }
+    }
+    int maxSlot = 0;
+    for(int slot: slots) {
+      maxSlot = Math.max(maxSlot, slot);
+    }
+    outcomeBySlot = new int[maxSlot + 1];
+    Arrays.fill(outcomeBySlot, -1);
+    for(int i = 0; i < slots.length; i++) {
+      outcomeBySlot[slots[i]] = i;
+    }
+  }
+
+  /**
+   * Simulate pulls on a fork/join pool. The pulls are split in halves down to
+   * LEAF_PULLS, each half with its own stream split from its parent, so the
+   * result only depends on the seed and not on the number of threads.
+   * @param long pulls
+   * @param long seed
+   * @param ForkJoinPool pool
+   * @return Report
+   */
+  public Report run(long pulls, long seed, ForkJoinPool pool) {
+    long start = System.nanoTime();
+    long[] counts = pool.invoke(new Pulls(pulls, new SplittableRandom(seed)));
+    return new Report(pulls, seed, counts, System.nanoTime() - start);
+  }
+
+  /**
+   * Number of threads for the simulator. 0 or less leaves one core to the server.
+   * @param int configured simulate.parallelism
+   * @return int
+   */
+  public static int parallelism(int configured) {
+    return configured > 0 ? configured : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+  }
+
+  /**
+   * Pulls of one subtree. Result: hits per outcome, then the number of hard pity pulls.
+   */
+  private final class Pulls extends RecursiveTask<long[]> {
+    private final long count;
+    private final SplittableRandom random;
+
+    private Pulls(long count, SplittableRandom random) {
+      this.count = count;
+      this.random = random;
+    }
+
+    @Override
+    protected long[] compute() {
+      if(count <= LEAF_PULLS) {
+        return simulate(count, random);
+      }
+      long half = count / 2;
+      Pulls left = new Pulls(half, random.split());
+      left.fork();
+      long[] counts = new Pulls(count - half, random).compute();
+      long[] other = left.join();
+      for(int i = 0; i < counts.length; i++) {
+        counts[i] += other[i];
+      }
+      return counts;
+    }
+  }
+
+  private long[] simulate(long count, SplittableRandom random) {
+    long[] counts = new long[slots.length + 1];
+    if(loot.isEmpty()) {
+      for(long i = 0; i < count; i++) {
+        counts[random.nextInt(slots.length)]++;
+      }
+      return counts;
+    }
+    if(split == null) {
+      for(long i = 0; i < count; i++) {
+        counts[outcomeBySlot[loot.sample(random).getSlot()]]++;
+      }
+      return counts;
+    }
+    DoubleSupplier coin = random::nextDouble;
+    int counter = 0;
+    for(long i = 0; i < count; i++) {
+      int n = counter + 1;
+      if(rule.isHard(n)) {
+        counts[slots.length]++;
+      }
+      GachaPlusLootEntry entry = rule.table(loot, split, n, coin).sample(random);
+      counts[outcomeBySlot[entry.getSlot()]]++;
+      counter = rule.isReset(entry) ? 0 : n;
+    }
+    return counts;
+  }
+
+  /**
+   * Result of a run.
+   */
+  public final class Report {
+    private final long pulls;
+    private final long seed;
+    private final long[] counts;
+    private final long nanos;
+
+    private Report(long pulls, long seed, long[] counts, long nanos) {
+      this.pulls = pulls;
+      this.seed = seed;
+      this.counts = counts;
+      this.nanos = nanos;
+    }
+
+    /**
+     * Hits of a loot slot.
+     * @param int slot
+     * @return long
+     */
+    public long getHits(int slot) {
+      int i = slot >= 0 && slot < outcomeBySlot.length ? outcomeBySlot[slot] : -1;
+      return i < 0 ? 0 : counts[i];
+    }
+
+    public long getPulls() {
+      return pulls;
+    }
+
+    public long getSeed() {
+      return seed;
+    }
+
+    /**
+     * Human readable lines: one per slot with the configured chance, the
+     * simulated rate with its 95% Wilson interval, and the pulls and money
+     * spent per copy of the item in that slot.
+     * @return List
+     */
+    public List<String> format() {
+      List<String> lines = new ArrayList<String>();
+      double seconds = nanos / 1e9;
+      lines.add(String.format("gacha=%s price=%d pulls=%d seed=%d time=%.2fs (%.1fM pulls/s)",
+        def.getName(), def.getPrice(), pulls, seed, seconds, seconds <= 0 ? 0 : pulls / seconds / 1e6));
+      if(split == null) {
+        lines.add("pity: off");
+      } else {
+        lines.add(String.format("pity: rarity=%s hard=%d soft-start=%d soft-step=%.4f, guaranteed pulls=%d (%.4f%%)",
+          rule.getRarity(), rule.getHard(), rule.getSoftStart(), rule.getSoftStep(), counts[slots.length], 100.0 * counts[slots.length] / pulls));
+      }
+      if(loot.isEmpty()) {
+        lines.add("No loot table: every slot of the linked chests is equally likely, an empty slot is a miss.");
+      }
+      for(int i = 0; i < slots.length; i++) {
+        long hits = counts[i];
+        double rate = (double)hits / pulls;
+        double[] ci = wilson(hits, pulls);
+        String rarity = loot.isEmpty() ? null : loot.getEntries().get(i).getRarity();
+        double chance = loot.isEmpty() ? 1.0 / slots.length : loot.getChance(loot.getEntries().get(i));
+        lines.add(String.format("slot=%d%s chance=%.4f%% rate=%.4f%% [%.4f%%, %.4f%%] pulls/copy=%s cost/copy=%s [%s, %s]",
+          slots[i], rarity == null ? "" : " rarity=" + rarity, 100 * chance, 100 * rate, 100 * ci[0], 100 * ci[1],
+          perCopy(1, rate), perCopy(def.getPrice(), rate), perCopy(def.getPrice(), ci[1]), perCopy(def.getPrice(), ci[0])));
+      }
+      return lines;
+    }
+  }
+
+  /**
+   * Wilson score interval of a proportion. Unlike p +- z * se it stays inside
+   * [0, 1] and does not collapse for slots that were never hit.
+   * @param long hits
+   * @param long n
+   * @return double[] {lower, upper}
+   */
+  static double[] wilson(long hits, long n) {
+    double p = (double)hits / n;
+    double z2 = Z * Z;
+    double denom = 1 + z2 / n;
+    double center = (p + z2 / (2.0 * n)) / denom;
+    double half = Z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n)) / denom;
+    return new double[]{Math.max(0, center - half), Math.min(1, center + half)};
+  }
+
+  private static String perCopy(double price, double rate) {
+    return rate <= 0 ? "inf" : String.format("%.1f", price / rate);
+  }
+
+  /**
+   * Standalone entry point. Reads config.yml and the database of a plugin
+   * folder and prints the report; no server is started and the gacha tables are only read.
+   * java -cp GachaPlus.jar:server.jar com.github.tunagohan.gachaplus.GachaPlusSimulator plugins/GachaPlus gacha_name [pulls] [seed]
+   * @param String[] args
+   */
+  public static void main(String[] args) throws Exception {
+    if(args.length < 2 || args.length > 4) {
+      System.err.println("Usage: GachaPlusSimulator <plugin folder> <gacha_name> [pulls] [seed]");
+      System.exit(2);
+    }
+    File dataFolder = new File(args[0]);
+    YamlConfiguration config = YamlConfiguration.loadConfiguration(new File(dataFolder, "config.yml"));
+    config.setDefaults(YamlConfiguration.loadConfiguration(
+      new InputStreamReader(GachaPlusSimulator.class.getResourceAsStream("/config.yml"), StandardCharsets.UTF_8)));
+    long pulls = args.length >= 3 ? Long.parseLong(args[2]) : config.getLong("simulate.default-pulls", 10000000L);
+    long seed = args.length == 4 ? Long.parseLong(args[3]) : new SplittableRandom().nextLong();
+    if(pulls < 1) {
+      System.err.println("pulls must be 1 or more.");
+      System.exit(2);
+    }
+
+    Logger logger = Logger.getLogger("GachaPlus");
+    GachaPlusStorage storage = GachaPlusStorage.create(config, dataFolder, logger);
+    GachaPlusConnection c = new GachaPlusConnection(storage::open, config.getInt("query-timeout", 10));
+    List<GachaPlusDefinition> defs;
+    try {
+      if(storage.getSchemaVersion(c.get()) < storage.getMigrations().size()) {
+        System.err.println("The database is older than this plugin. Start the server once to migrate it.");
+        System.exit(1);
+      }
+      defs = GachaPlusDatabase.loadDefinitions(c);
+    } finally {
+      c.close();
+    }
+    GachaPlusDefinition def = null;
+    for(GachaPlusDefinition d: defs) {
+      if(d.getName().equals(args[1])) {
+        def = d;
+      }
+    }
+    if(def == null) {
+      System.err.println("Record not found. gacha_name=" + args[1]);
+      System.exit(1);
+    }
+
+    // No server shares the machine, so every core is used.
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    try {
+      Report report = new GachaPlusSimulator(def, GachaPlusPity.Rule.of(config)).run(pulls, seed, pool);
+      for(String line: report.format()) {
+        System.out.println(line);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/*
+ * GachaPlusSqliteStorage
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusSqliteStorage implements GachaPlusStorage {
+  private final ConfigurationSection config;
+  private final File dataFolder;
+  private final Logger logger;
+
+  /**
+   * Constructor of GachaPlusSqliteStorage.
+   * @param ConfigurationSection config
+   * @param File dataFolder
+   * @param Logger logger
+   */
+  public GachaPlusSqliteStorage(ConfigurationSection config, File dataFolder, Logger logger) {
+    this.config = config;
+    this.dataFolder = dataFolder;
+    this.logger = logger;
+  }
+
+  @Override
+  public String getName() {
+    return "sqlite";
+  }
+
+  @Override
+  public Connection open() throws Exception {
+    // Create database folder.
+    if(!dataFolder.exists()){
+      dataFolder.mkdir();
+    }
+    // Select JDBC driver.
+    Class.forName("org.sqlite.JDBC");
+    String url = "jdbc:sqlite:" + dataFolder + File.separator + "sqlite.db";
+    Connection c = DriverManager.getConnection(url);
+    c.setAutoCommit(true);
+    applyPragmas(c);
+    return c;
+  }
+
+  /**
+   * Apply SQLite pragmas from config.yml to a new connection.
+   * @param Connection c
+   */
+  private void applyPragmas(Connection c) throws SQLException {
+    Statement stmt = c.createStatement();
+    try {
+      // WAL lets the reader connection run while the writer thread commits.
+      stmt.execute("PRAGMA journal_mode=" + getPragmaWord("sqlite.journal-mode", "WAL"));
+      stmt.execute("PRAGMA synchronous=" + getPragmaWord("sqlite.synchronous", "NORMAL"));
+      stmt.execute("PRAGMA mmap_size=" + config.getLong("sqlite.mmap-size", 268435456L));
+      stmt.execute("PRAGMA cache_size=" + config.getLong("sqlite.cache-size", -16000L));
+      stmt.execute("PRAGMA busy_timeout=" + (config.getInt("query-timeout") * 1000));
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Get pragma keyword from config.yml, falling back to the default when it is not a plain word.
+   * @param String path
+   * @param String def
+   * @return String keyword
+   */
+  private String getPragmaWord(String path, String def) {
+    String value = config.getString(path, def);
+    if(value == null || !value.matches("^[A-Za-z]+$")) {
+      logger.warning("Invalid " + path + ": " + value + ", using " + def);
+      return def;
+    }
+    return value;
+  }
+
+  @Override
+  public int getSchemaVersion(Connection c) throws SQLException {
+    try(Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+
+  @Override
+  public void setSchemaVersion(Connection c, int version) throws SQLException {
+    try(Statement stmt = c.createStatement()) {
+      stmt.executeUpdate("PRAGMA user_version = " + version);
+    }
+  }
+
+  @Override
+  public List<List<String>> getMigrations() {
+    return Arrays.asList(
+      // 1: Tables as created before versioning, so older databases pass through unchanged.
+      Arrays.asList(
+      "CREATE TABLE IF NOT EXISTS gacha ("
+              + "  id INTEGER PRIMARY KEY AUTOINCREMENT"
+              + "  ,gacha_name STRING NOT NULL"
+              + "  ,gacha_display_name STRING NOT NULL"
+              + "  ,gacha_price INTEGER NOT NULL"
+              + "  ,world_name STRING NOT NULL"
+              + "  ,sign_x INTEGER NOT NULL"
+              + "  ,sign_y INTEGER NOT NULL"
+              + "  ,sign_z INTEGER NOT NULL"
+              + "  ,chest_x INTEGER NOT NULL DEFAULT 0"
+              + "  ,chest_y INTEGER NOT NULL DEFAULT 0"
+              + "  ,chest_z INTEGER NOT NULL DEFAULT 0"
+              + "  ,updated_at DATETIME NOT NULL DEFAULT (datetime('now','localtime')) CHECK(updated_at LIKE '____-__-__ __:__:__')"
+              + "  ,created_at DATETIME NOT NULL DEFAULT (datetime('now','localtime')) CHECK(created_at LIKE '____-__-__ __:__:__')"
+              + ");"
+      ,"CREATE UNIQUE INDEX IF NOT EXISTS gacha_name_uindex ON gacha (gacha_name);"
+      ,"CREATE UNIQUE INDEX IF NOT EXISTS world_name_sign_xyz_uindex ON gacha (world_name, sign_x, sign_y, sign_z);"
+      ,"CREATE UNIQUE INDEX IF NOT EXISTS world_name_chest_xyz_uindex ON gacha (world_name, chest_x, chest_y, chest_z);"
+      ,"CREATE TABLE IF NOT EXISTS gacha_pull ("
+              + "  id INTEGER PRIMARY KEY AUTOINCREMENT"
+              + "  ,player_uuid TEXT NOT NULL"
+              + "  ,gacha_id INTEGER"
+              + "  ,slot INTEGER NOT NULL"
+              + "  ,item_fingerprint TEXT"
+              + "  ,price INTEGER NOT NULL"
+              + "  ,pulled_at INTEGER NOT NULL"
+              + ");"
+      ,"CREATE INDEX IF NOT EXISTS gacha_pull_player_index ON gacha_pull (player_uuid, pulled_at);"
+      ,"CREATE INDEX IF NOT EXISTS gacha_pull_gacha_index ON gacha_pull (gacha_id, pulled_at);"
+      ,"CREATE TABLE IF NOT EXISTS gacha_loot ("
+              + "  gacha_id INTEGER NOT NULL"
+              + "  ,slot INTEGER NOT NULL"
+              + "  ,weight REAL NOT NULL"
+              + "  ,rarity TEXT"
+              + "  ,PRIMARY KEY (gacha_id, slot)"
+              + ");"
+      ,"CREATE TABLE IF NOT EXISTS gacha_pity ("
+              + "  player_uuid TEXT NOT NULL"
+              + "  ,gacha_id INTEGER NOT NULL"
+              + "  ,pulls INTEGER NOT NULL"
+              + "  ,PRIMARY KEY (player_uuid, gacha_id)"
+              + ");"
+      ),
+      // 2: STRING columns had NUMERIC affinity, and unset chests were 0,0,0 under a unique index.
+      // SQLite can not alter a column, so the tables are rebuilt. Loot and pity become
+      // WITHOUT ROWID, their primary key then holds the row and answers lookups alone.
+      // Secondary indexes carry the rowid, so id by name or sign is answered from the index.
+      Arrays.asList(
+      "CREATE TABLE gacha_v2 ("
+              + "  id INTEGER PRIMARY KEY AUTOINCREMENT"
+              + "  ,gacha_name TEXT NOT NULL"
+              + "  ,gacha_display_name TEXT NOT NULL"
+              + "  ,gacha_price INTEGER NOT NULL"
+              + "  ,world_name TEXT NOT NULL"
+              + "  ,sign_x INTEGER NOT NULL"
+              + "  ,sign_y INTEGER NOT NULL"
+              + "  ,sign_z INTEGER NOT NULL"
+              + "  ,chest_x INTEGER"
+              + "  ,chest_y INTEGER"
+              + "  ,chest_z INTEGER"
+              + "  ,updated_at DATETIME NOT NULL DEFAULT (datetime('now','localtime')) CHECK(updated_at LIKE '____-__-__ __:__:__')"
+              + "  ,created_at DATETIME NOT NULL DEFAULT (datetime('now','localtime')) CHECK(created_at LIKE '____-__-__ __:__:__')"
+              + ");"
+      ,"INSERT INTO gacha_v2 SELECT"
+              + "  id"
+              + "  ,CAST(gacha_name AS TEXT)"
+              + "  ,CAST(gacha_display_name AS TEXT)"
+              + "  ,gacha_price"
+              + "  ,CAST(world_name AS TEXT)"
+              + "  ,sign_x"
+              + "  ,sign_y"
+              + "  ,sign_z"
+              + "  ,CASE WHEN chest_x = 0 AND chest_y = 0 AND chest_z = 0 THEN NULL ELSE chest_x END"
+              + "  ,CASE WHEN chest_x = 0 AND chest_y = 0 AND chest_z = 0 THEN NULL ELSE chest_y END"
+              + "  ,CASE WHEN chest_x = 0 AND chest_y = 0 AND chest_z = 0 THEN NULL ELSE chest_z END"
+              + "  ,updated_at"
+              + "  ,created_at "
+              + "FROM gacha;"
+      // Keep the id sequence, so ids of deleted gacha in gacha_pull are not reused.
+      ,"DELETE FROM sqlite_sequence WHERE name = 'gacha_v2';"
+      ,"INSERT INTO sqlite_sequence (name, seq) SELECT 'gacha_v2', seq FROM sqlite_sequence WHERE name = 'gacha';"
+      ,"DROP TABLE gacha;"
+      ,"ALTER TABLE gacha_v2 RENAME TO gacha;"
+      ,"CREATE UNIQUE INDEX gacha_name_uindex ON gacha (gacha_name);"
+      ,"CREATE UNIQUE INDEX world_name_sign_xyz_uindex ON gacha (world_name, sign_x, sign_y, sign_z);"
+      ,"CREATE UNIQUE INDEX world_name_chest_xyz_uindex ON gacha (world_name, chest_x, chest_y, chest_z);"
+      // list world:<w> walks this in id order.
+      ,"CREATE INDEX gacha_world_id_index ON gacha (world_name, id);"
+      ,"CREATE TABLE gacha_loot_v2 ("
+              + "  gacha_id INTEGER NOT NULL"
+              + "  ,slot INTEGER NOT NULL"
+              + "  ,weight REAL NOT NULL"
+              + "  ,rarity TEXT"
+              + "  ,PRIMARY KEY (gacha_id, slot)"
+              + ") WITHOUT ROWID;"
+      ,"INSERT INTO gacha_loot_v2 SELECT gacha_id, slot, weight, rarity FROM gacha_loot;"
+      ,"DROP TABLE gacha_loot;"
+      ,"ALTER TABLE gacha_loot_v2 RENAME TO gacha_loot;"
+      ,"CREATE TABLE gacha_pity_v2 ("
+              + "  player_uuid TEXT NOT NULL"
+              + "  ,gacha_id INTEGER NOT NULL"
+              + "  ,pulls INTEGER NOT NULL"
+              + "  ,PRIMARY KEY (player_uuid, gacha_id)"
+              + ") WITHOUT ROWID;"
+      ,"INSERT INTO gacha_pity_v2 SELECT player_uuid, gacha_id, pulls FROM gacha_pity;"
+      ,"DROP TABLE gacha_pity;"
+      ,"ALTER TABLE gacha_pity_v2 RENAME TO gacha_pity;"
+      ),
+      // 3: Any number of chests per gacha. The chest columns of gacha are no longer read.
+      Arrays.asList(
+      "CREATE TABLE gacha_chest ("
+              + "  gacha_id INTEGER NOT NULL"
+              + "  ,position INTEGER NOT NULL"
+              + "  ,world_name TEXT NOT NULL"
+              + "  ,chest_x INTEGER NOT NULL"
+              + "  ,chest_y INTEGER NOT NULL"
+              + "  ,chest_z INTEGER NOT NULL"
+              + "  ,PRIMARY KEY (gacha_id, position)"
+              + ") WITHOUT ROWID;"
+      ,"CREATE UNIQUE INDEX gacha_chest_xyz_uindex ON gacha_chest (world_name, chest_x, chest_y, chest_z);"
+      ,"INSERT INTO gacha_chest SELECT id, 0, world_name, chest_x, chest_y, chest_z FROM gacha WHERE chest_x IS NOT NULL;"
+      ,"UPDATE gacha SET chest_x = NULL, chest_y = NULL, chest_z = NULL;"
+      )
+    );
+  }
+
+  /**
+   * SQLite allows a single writer, the writer thread has its own connection
+   * so reads are served by one connection as well.
+   */
+  @Override
+  public int getPoolSize() {
+    return 1;
+  }
+}
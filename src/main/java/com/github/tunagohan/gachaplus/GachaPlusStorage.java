@@ -0,0 +1,122 @@
+package com.github.tunagohan.gachaplus;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.logging.Logger;
+
+/*
+ * GachaPlusStorage
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public interface GachaPlusStorage {
+
+  /**
+   * Backend name, as written in config.yml storage.type.
+   * @return String
+   */
+  String getName();
+
+  /**
+   * Open a new JDBC connection with autocommit on.
+   * @return Connection
+   * @throws Exception
+   */
+  Connection open() throws Exception;
+
+  /**
+   * Dialect-specific migrations. Element i moves the schema from version i to i + 1.
+   * Released migrations must never change, new ones are appended.
+   * @return List
+   */
+  List<List<String>> getMigrations();
+
+  /**
+   * Current schema version, 0 for a new database or one older than migrations.
+   * Kept in the gacha_schema table unless the backend has its own slot.
+   * @param Connection c
+   * @return int
+   */
+  default int getSchemaVersion(Connection c) throws SQLException {
+    try(Statement stmt = c.createStatement()) {
+      stmt.executeUpdate("CREATE TABLE IF NOT EXISTS gacha_schema (version INTEGER NOT NULL)");
+      try(ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM gacha_schema")) {
+        return rs.next() ? rs.getInt(1) : 0;
+      }
+    }
+  }
+
+  /**
+   * Record the schema version, inside the transaction of the migration.
+   * @param Connection c
+   * @param int version
+   */
+  default void setSchemaVersion(Connection c, int version) throws SQLException {
+    try(Statement stmt = c.createStatement()) {
+      stmt.executeUpdate("DELETE FROM gacha_schema");
+      stmt.executeUpdate("INSERT INTO gacha_schema (version) VALUES (" + version + ")");
+    }
+  }
+
+  /**
+   * Max number of read connections.
+   * @return int
+   */
+  int getPoolSize();
+
+  /**
+   * Determine whether other servers may write the same database.
+   * @return boolean true:Rows can change outside this plugin instance.
+   */
+  default boolean isShared() {
+    return false;
+  }
+
+  /**
+   * Create the backend selected by storage.type in config.yml.
+   * @param GachaPlus gacha
+   * @return GachaPlusStorage
+   */
+  static GachaPlusStorage create(GachaPlus gacha) {
+    return create(gacha.getConfig(), gacha.getDataFolder(), gacha.getLogger());
+  }
+
+  /**
+   * Create the backend selected by storage.type, without a running server.
+   * @param ConfigurationSection config config.yml of the plugin.
+   * @param File dataFolder Plugin folder, where the file databases live.
+   * @param Logger logger
+   * @return GachaPlusStorage
+   */
+  static GachaPlusStorage create(ConfigurationSection config, File dataFolder, Logger logger) {
+    String type = config.getString("storage.type", "sqlite").toLowerCase();
+    switch(type) {
+      case "mysql":
+      case "mariadb":
+        return new GachaPlusMysqlStorage(config, type);
+
+      case "h2":
+        try {
+          Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException e) {
+          logger.severe("storage.type is h2 but the H2 driver is not on the classpath, using sqlite");
+          return new GachaPlusSqliteStorage(config, dataFolder, logger);
+        }
+        return new GachaPlusH2Storage(config, dataFolder);
+
+      case "sqlite":
+        return new GachaPlusSqliteStorage(config, dataFolder, logger);
+
+      default:
+        logger.warning("Unknown storage.type: " + type + ", using sqlite");
+        return new GachaPlusSqliteStorage(config, dataFolder, logger);
+    }
+  }
+}
@@ -0,0 +1,405 @@
+package com.github.tunagohan.gachaplus;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+
+/*
+ * GachaPlusTransfer
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusTransfer {
+  private static final String INSERT_GACHA_SQL = "INSERT INTO gacha("
+          + "  gacha_name"
+          + ", gacha_display_name"
+          + ", gacha_price"
+          + ", world_name"
+          + ", sign_x"
+          + ", sign_y"
+          + ", sign_z"
+          + ") VALUES (?,?,?,?,?,?,?)";
+  // The id of a batched insert is not portable, so chests and loot find their gacha by name.
+  private static final String INSERT_CHEST_SQL = "INSERT INTO gacha_chest(gacha_id, position, world_name, chest_x, chest_y, chest_z)"
+          + " SELECT id, ?, world_name, ?, ?, ? FROM gacha WHERE gacha_name = ?";
+  private static final String INSERT_LOOT_SQL = "INSERT INTO gacha_loot(gacha_id, slot, weight, rarity)"
+          + " SELECT id, ?, ?, ? FROM gacha WHERE gacha_name = ?";
+  private static final int MAX_POSITION = Integer.MAX_VALUE / GachaPlusPool.SLOTS_PER_CHEST - 1;
+
+  private final GachaPlus gacha;
+  private final int batchSize;
+  private final int progressEvery;
+
+  /**
+   * Result of an import.
+   */
+  public static final class Result {
+    private final int imported;
+    private final int skipped;
+    // Imported gacha as committed, put into the registry once the import commits.
+    private final List<GachaPlusDefinition> definitions;
+
+    private Result(int imported, int skipped, List<GachaPlusDefinition> definitions) {
+      this.imported = imported;
+      this.skipped = skipped;
+      this.definitions = definitions;
+    }
+
+    public int getImported() {
+      return imported;
+    }
+
+    /**
+     * Lines whose name, sign or chest is already taken.
+     * @return int
+     */
+    public int getSkipped() {
+      return skipped;
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusTransfer.
+   * Definitions are moved as JSON Lines, one gacha with its loot table per line.
+   * @param GachaPlus gacha
+   */
+  public GachaPlusTransfer(GachaPlus gacha) {
+    this.gacha = gacha;
+    this.batchSize = Math.max(1, gacha.getConfig().getInt("transfer.batch-size", 500));
+    this.progressEvery = Math.max(1, gacha.getConfig().getInt("transfer.progress-every", 1000));
+  }
+
+  /**
+   * Resolve a file name in the data folder.
+   * @param String name
+   * @return File|null null when the name points outside the data folder.
+   */
+  public File resolve(String name) {
+    try {
+      File folder = gacha.getDataFolder().getCanonicalFile();
+      File file = new File(folder, name).getCanonicalFile();
+      return file.toPath().startsWith(folder.toPath()) && !file.equals(folder) ? file : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Write every definition to a file on the I/O thread.
+   * Rows are streamed from the result set, the file is replaced atomically at the end.
+   * @param File file
+   * @param IntConsumer progress Called with the number of written lines, off the main thread.
+   * @return CompletableFuture Number of written lines, null when the query failed.
+   */
+  public CompletableFuture<Integer> exportAsync(File file, IntConsumer progress) {
+    return gacha.getDatabase().readAsync("db.export", c -> export(c, file, progress));
+  }
+
+  private Integer export(GachaPlusConnection c, File file, IntConsumer progress) throws SQLException {
+    Map<Integer, List<GachaPlusLootEntry>> loot = GachaPlusDatabase.loadLoot(c);
+    Map<Integer, List<GachaPlusDefinition.ChestLink>> chests = GachaPlusDatabase.loadChests(c);
+    File tmp = new File(file.getPath() + ".tmp");
+    int count = 0;
+    PreparedStatement prepStmt = c.prepare("SELECT"
+            + "  id "
+            + "  ,gacha_name "
+            + "  ,gacha_display_name "
+            + "  ,gacha_price "
+            + "  ,world_name "
+            + "  ,sign_x "
+            + "  ,sign_y "
+            + "  ,sign_z "
+            + "FROM"
+            + "  gacha "
+            + "ORDER BY"
+            + "  id"
+    );
+    try(ResultSet rs = prepStmt.executeQuery();
+        BufferedWriter out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+      while(rs.next()) {
+        JsonObject json = new JsonObject();
+        json.addProperty("name", rs.getString(2));
+        json.addProperty("display_name", rs.getString(3));
+        json.addProperty("price", rs.getInt(4));
+        json.addProperty("world", rs.getString(5));
+        json.add("sign", xyz(rs.getInt(6), rs.getInt(7), rs.getInt(8)));
+        JsonArray links = new JsonArray();
+        List<GachaPlusDefinition.ChestLink> chestRows = chests.get(rs.getInt(1));
+        if(chestRows != null) {
+          for(GachaPlusDefinition.ChestLink link: chestRows) {
+            JsonObject e = new JsonObject();
+            e.addProperty("position", link.getPosition());
+            e.add("block", xyz(link.getX(), link.getY(), link.getZ()));
+            links.add(e);
+          }
+        }
+        json.add("chests", links);
+        JsonArray entries = new JsonArray();
+        List<GachaPlusLootEntry> rows = loot.get(rs.getInt(1));
+        if(rows != null) {
+          for(GachaPlusLootEntry entry: rows) {
+            JsonObject e = new JsonObject();
+            e.addProperty("slot", entry.getSlot());
+            e.addProperty("weight", entry.getWeight());
+            if(entry.getRarity() != null) {
+              e.addProperty("rarity", entry.getRarity());
+            }
+            entries.add(e);
+          }
+        }
+        json.add("loot", entries);
+        out.write(json.toString());
+        out.newLine();
+        if(++count % progressEvery == 0) {
+          progress.accept(count);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    try {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return count;
+  }
+
+  private static JsonArray xyz(int x, int y, int z) {
+    JsonArray ret = new JsonArray();
+    ret.add(x);
+    ret.add(y);
+    ret.add(z);
+    return ret;
+  }
+
+  /**
+   * Read a file into the database in one writer transaction, then put the imported gacha into the registry.
+   * Lines are streamed and inserted in batches of transfer.batch-size. Any bad line
+   * rolls the whole import back.
+   * @param File file
+   * @param IntConsumer progress Called with the number of read lines, off the main thread.
+   * @return CompletableFuture Result, completed after the registry is updated. Fails when it could not be.
+   */
+  public CompletableFuture<Result> importAsync(File file, IntConsumer progress) {
+    GachaPlusDatabase database = gacha.getDatabase();
+    return database.write("db.import", c -> importFile(c, file, progress))
+      .thenApply(result -> {
+        GachaPlusRegistry registry = database.getRegistry();
+        int missing = 0;
+        for(GachaPlusDefinition def: result.definitions) {
+          GachaPlusDefinition cur = registry.putIfAbsent(def);
+          // A sign placed during the import whose insert lost the name to it: the imported row is the one in the table.
+          if(cur != null && registry.update(def.getName(), old -> old.getId() == null ? def : old) != def) {
+            missing++;
+          }
+        }
+        if(missing > 0) {
+          throw new IllegalStateException("Imported " + result.imported + " gacha, but " + missing
+                  + " clash with gacha registered meanwhile and are not loaded until the next restart.");
+        }
+        return result;
+      });
+  }
+
+  private Result importFile(GachaPlusConnection c, File file, IntConsumer progress) throws SQLException {
+    Set<String> names = new HashSet<String>();
+    Set<String> importedNames = new HashSet<String>();
+    Set<String> blocks = new HashSet<String>();
+    PreparedStatement select = c.prepare("SELECT gacha_name, world_name, sign_x, sign_y, sign_z FROM gacha");
+    try(ResultSet rs = select.executeQuery()) {
+      while(rs.next()) {
+        names.add(rs.getString(1));
+        blocks.add(block(rs.getString(2), rs.getInt(3), rs.getInt(4), rs.getInt(5)));
+      }
+    }
+    select = c.prepare("SELECT world_name, chest_x, chest_y, chest_z FROM gacha_chest");
+    try(ResultSet rs = select.executeQuery()) {
+      while(rs.next()) {
+        blocks.add(block(rs.getString(1), rs.getInt(2), rs.getInt(3), rs.getInt(4)));
+      }
+    }
+
+    PreparedStatement insertGacha = c.prepare(INSERT_GACHA_SQL);
+    PreparedStatement insertChest = c.prepare(INSERT_CHEST_SQL);
+    PreparedStatement insertLoot = c.prepare(INSERT_LOOT_SQL);
+    // Other tasks of the writer batch still commit, so undo only this import on failure.
+    Savepoint savepoint = c.get().setSavepoint();
+    int lineNo = 0;
+    int imported = 0;
+    int skipped = 0;
+    int pending = 0;
+    try(BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while((line = in.readLine()) != null) {
+        lineNo++;
+        if(lineNo % progressEvery == 0) {
+          progress.accept(lineNo);
+        }
+        if(line.trim().isEmpty()) {
+          continue;
+        }
+        try {
+          JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+          String name = json.get("name").getAsString();
+          String world = json.get("world").getAsString();
+          JsonArray sign = json.get("sign").getAsJsonArray();
+          String signBlock = block(world, sign.get(0).getAsInt(), sign.get(1).getAsInt(), sign.get(2).getAsInt());
+          if(!name.matches("^[0-9a-zA-Z_]+$")) {
+            throw new IllegalArgumentException("invalid name " + name);
+          }
+          List<GachaPlusDefinition.ChestLink> links = chests(json);
+          Set<String> chestBlocks = new HashSet<String>();
+          for(GachaPlusDefinition.ChestLink link: links) {
+            if(!chestBlocks.add(block(world, link.getX(), link.getY(), link.getZ()))) {
+              throw new IllegalArgumentException("chest linked twice");
+            }
+          }
+          if(names.contains(name) || blocks.contains(signBlock) || !Collections.disjoint(blocks, chestBlocks)) {
+            skipped++;
+            continue;
+          }
+          names.add(name);
+          importedNames.add(name);
+          blocks.add(signBlock);
+          blocks.addAll(chestBlocks);
+
+          insertGacha.setString(1, name);
+          insertGacha.setString(2, json.has("display_name") ? json.get("display_name").getAsString() : name);
+          insertGacha.setInt(3, json.get("price").getAsInt());
+          insertGacha.setString(4, world);
+          insertGacha.setInt(5, sign.get(0).getAsInt());
+          insertGacha.setInt(6, sign.get(1).getAsInt());
+          insertGacha.setInt(7, sign.get(2).getAsInt());
+          insertGacha.addBatch();
+
+          for(GachaPlusDefinition.ChestLink link: links) {
+            insertChest.setInt(1, link.getPosition());
+            insertChest.setInt(2, link.getX());
+            insertChest.setInt(3, link.getY());
+            insertChest.setInt(4, link.getZ());
+            insertChest.setString(5, name);
+            insertChest.addBatch();
+          }
+
+          if(json.has("loot")) {
+            for(JsonElement element: json.get("loot").getAsJsonArray()) {
+              JsonObject entry = element.getAsJsonObject();
+              double weight = entry.get("weight").getAsDouble();
+              if(weight <= 0) {
+                continue;
+              }
+              insertLoot.setInt(1, entry.get("slot").getAsInt());
+              insertLoot.setDouble(2, weight);
+              if(!entry.has("rarity") || entry.get("rarity").isJsonNull()) {
+                insertLoot.setNull(3, Types.VARCHAR);
+              } else {
+                insertLoot.setString(3, entry.get("rarity").getAsString());
+              }
+              insertLoot.setString(4, name);
+              insertLoot.addBatch();
+            }
+          }
+        } catch (RuntimeException e) {
+          throw new SQLException("Bad line " + lineNo + " in " + file.getName() + ": " + e.getMessage(), e);
+        }
+
+        imported++;
+        if(++pending >= batchSize) {
+          // Gachas first, the chest and loot inserts look them up by name.
+          insertGacha.executeBatch();
+          insertChest.executeBatch();
+          insertLoot.executeBatch();
+          pending = 0;
+        }
+      }
+      if(pending > 0) {
+        insertGacha.executeBatch();
+        insertChest.executeBatch();
+        insertLoot.executeBatch();
+      }
+    } catch (SQLException e) {
+      rollback(c, savepoint, insertGacha, insertChest, insertLoot);
+      throw e;
+    } catch (IOException e) {
+      rollback(c, savepoint, insertGacha, insertChest, insertLoot);
+      throw new SQLException("Can not read " + file.getName(), e);
+    }
+    // Read back inside the transaction, so the rows are exactly the ones this import wrote.
+    List<GachaPlusDefinition> definitions = new ArrayList<GachaPlusDefinition>(imported);
+    if(imported > 0) {
+      for(GachaPlusDefinition def: GachaPlusDatabase.loadDefinitions(c)) {
+        if(importedNames.contains(def.getName())) {
+          definitions.add(def);
+        }
+      }
+    }
+    return new Result(imported, skipped, definitions);
+  }
+
+  /**
+   * Chests of a line. Files written before chests were linked have a single chest,
+   * where 0,0,0 means none.
+   * @param JsonObject json
+   * @return List
+   */
+  private static List<GachaPlusDefinition.ChestLink> chests(JsonObject json) {
+    List<GachaPlusDefinition.ChestLink> ret = new ArrayList<GachaPlusDefinition.ChestLink>();
+    if(json.has("chests")) {
+      Set<Integer> positions = new HashSet<Integer>();
+      for(JsonElement element: json.get("chests").getAsJsonArray()) {
+        JsonObject link = element.getAsJsonObject();
+        int position = link.get("position").getAsInt();
+        if(position < 0 || position > MAX_POSITION || !positions.add(position)) {
+          throw new IllegalArgumentException("invalid chest position " + position);
+        }
+        JsonArray b = link.get("block").getAsJsonArray();
+        ret.add(new GachaPlusDefinition.ChestLink(position, b.get(0).getAsInt(), b.get(1).getAsInt(), b.get(2).getAsInt()));
+      }
+    } else if(json.has("chest")) {
+      JsonArray b = json.get("chest").getAsJsonArray();
+      if(b.get(0).getAsInt() != 0 || b.get(1).getAsInt() != 0 || b.get(2).getAsInt() != 0) {
+        ret.add(new GachaPlusDefinition.ChestLink(0, b.get(0).getAsInt(), b.get(1).getAsInt(), b.get(2).getAsInt()));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Undo the import. The statements are cached, so their pending batches are dropped too.
+   */
+  private static void rollback(GachaPlusConnection c, Savepoint savepoint, PreparedStatement... statements) throws SQLException {
+    for(PreparedStatement statement: statements) {
+      statement.clearBatch();
+    }
+    c.get().rollback(savepoint);
+  }
+
+  private static String block(String world, int x, int y, int z) {
+    return world + ":" + GachaPlusBlockIndex.pack(x, y, z);
+  }
+}
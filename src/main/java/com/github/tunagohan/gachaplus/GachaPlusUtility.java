@@ -7,6 +7,7 @@ import org.bukkit.Location;
 import org.bukkit.command.BlockCommandSender;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
 import org.bukkit.metadata.FixedMetadataValue;
 import org.bukkit.metadata.MetadataValue;
 import org.bukkit.plugin.Plugin;
@@ -14,7 +15,6 @@ import org.bukkit.plugin.Plugin;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.Random;
 import java.util.logging.Level;
 
 /*
@@ -24,12 +24,14 @@ import java.util.logging.Level;
  * @author     tunagohan
  */
 public class GachaPlusUtility {
+  private static final String PREFIX = ChatColor.DARK_RED + "[GachaPlus]" + " " + ChatColor.RED;
 
   /**
    * Output stack trace to log file.
-   * @param Exception Exception
+   * @param Throwable Throwable
    */
-  public static void logStackTrace(Exception e){
+  public static void logStackTrace(Throwable e){
+    GachaPlusMetrics.recordError();
     StringWriter sw = new StringWriter();
     PrintWriter pw = new PrintWriter(sw);
     e.printStackTrace(pw);
@@ -61,6 +63,15 @@ public class GachaPlusUtility {
     return null;
   }
 
+  /**
+   * Determine whether the punch links another chest instead of replacing the first one.
+   * @param Player Player
+   * @return boolean true:Link false:Replace
+   */
+  public static boolean isLinkPunch(Player player){
+    return player.hasMetadata(GachaPlusCommand.META_LINK);
+  }
+
   /**
    * Set punch processing.
    * @param Player Player
@@ -68,8 +79,22 @@ public class GachaPlusUtility {
    * @param String Gacha Name
    */
   public static void setPunch(Player player, GachaPlus gacha, String gachaName){
+    setPunch(player, gacha, gachaName, false);
+  }
+
+  /**
+   * Set punch processing.
+   * @param Player Player
+   * @param GachaPlus Gacha
+   * @param String Gacha Name
+   * @param boolean link true:Link another chest false:Replace the first chest
+   */
+  public static void setPunch(Player player, GachaPlus gacha, String gachaName, boolean link){
     removePunch(player, gacha);
     player.setMetadata(GachaPlusCommand.META_CHEST, new FixedMetadataValue(gacha, gachaName));
+    if(link) {
+      player.setMetadata(GachaPlusCommand.META_LINK, new FixedMetadataValue(gacha, true));
+    }
   }
 
   /**
@@ -79,6 +104,7 @@ public class GachaPlusUtility {
    */
   public static void removePunch(Player player, GachaPlus gacha){
     player.removeMetadata(GachaPlusCommand.META_CHEST, gacha);
+    player.removeMetadata(GachaPlusCommand.META_LINK, gacha);
   }
 
   /**
@@ -87,7 +113,16 @@ public class GachaPlusUtility {
    * @param String message
    */
   public static void sendMessage(CommandSender sender, String message){
-    sender.sendMessage((Object)ChatColor.DARK_RED + "[GachaPlus]" + " " + (Object)ChatColor.RED + message);
+    sender.sendMessage(PREFIX + message);
+  }
+
+  /**
+   * Get a short fingerprint of an item for the pull history.
+   * @param ItemStack item
+   * @return String material:amount:hash
+   */
+  public static String getItemFingerprint(ItemStack item){
+    return item.getType().name() + ":" + item.getAmount() + ":" + Integer.toHexString(item.hashCode());
   }
 
   /**
@@ -145,8 +180,9 @@ public class GachaPlusUtility {
           for (Player p : Bukkit.getOnlinePlayers()) {
             curPlayerList.add(p);
           }
-          Random random = new Random();
-          list.add(curPlayerList.get(random.nextInt(curPlayerList.size())));
+          if(!curPlayerList.isEmpty()) {
+            list.add(curPlayerList.get(GachaPlusRandom.nextInt(curPlayerList.size())));
+          }
           break;
       }
     }
@@ -0,0 +1,192 @@
+package com.github.tunagohan.gachaplus;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * GachaPlusWriter
+ * @license    LGPLv3
+ * @copyright  Copyright com.github.tunagohan 2021
+ * @author     tunagohan
+ */
+public class GachaPlusWriter implements Runnable {
+  private final BlockingQueue<Entry<?>> queue = new LinkedBlockingQueue<Entry<?>>();
+  private final GachaPlusConnection con;
+  private final int batchSize;
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * Write task, run on the writer thread inside a transaction.
+   */
+  public interface Task<T> {
+    T apply(GachaPlusConnection con) throws SQLException;
+  }
+
+  private static final class Entry<T> {
+    private final Task<T> task;
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+    private T result;
+    private Exception error;
+
+    private Entry(Task<T> task) {
+      this.task = task;
+    }
+
+    /**
+     * Run the task inside its own savepoint. A task that throws is rolled
+     * back to it, so none of its statements commit with the rest of the batch.
+     * @param GachaPlusConnection con
+     * @param Connection c Connection of the batch transaction.
+     * @throws SQLException The savepoint itself failed, the batch cannot commit.
+     */
+    private void apply(GachaPlusConnection con, Connection c) throws SQLException {
+      Savepoint savepoint = c.setSavepoint();
+      try {
+        result = task.apply(con);
+      } catch (SQLException | RuntimeException e) {
+        error = e;
+        c.rollback(savepoint);
+        return;
+      }
+      c.releaseSavepoint(savepoint);
+    }
+
+    private void complete() {
+      if(error != null) {
+        future.completeExceptionally(error);
+      } else {
+        future.complete(result);
+      }
+    }
+  }
+
+  /**
+   * Constructor of GachaPlusWriter.
+   * @param GachaPlusConnection con Connection owned by the writer thread.
+   * @param int batchSize Max tasks per transaction.
+   */
+  public GachaPlusWriter(GachaPlusConnection con, int batchSize) {
+    this.con = con;
+    this.batchSize = Math.max(1, batchSize);
+    this.thread = new Thread(this, "GachaPlus-Writer");
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * Start writer thread.
+   */
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Queue a write.
+   * @param Task task
+   * @return CompletableFuture Completed after the transaction holding the task commits.
+   */
+  public <T> CompletableFuture<T> submit(Task<T> task) {
+    Entry<T> entry = new Entry<T>(task);
+    if(!running) {
+      entry.future.completeExceptionally(new IllegalStateException("GachaPlus writer is stopped."));
+      return entry.future;
+    }
+    queue.add(entry);
+    return entry.future;
+  }
+
+  /**
+   * Writer loop. Everything queued while the previous transaction was
+   * running is committed together in the next one.
+   */
+  @Override
+  public void run() {
+    List<Entry<?>> batch = new ArrayList<Entry<?>>(batchSize);
+    while(running || !queue.isEmpty()) {
+      try {
+        Entry<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if(first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        commit(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        running = false;
+      } catch (Exception e) {
+        GachaPlusUtility.logStackTrace(e);
+      } finally {
+        batch.clear();
+      }
+    }
+    Entry<?> rest;
+    while((rest = queue.poll()) != null) {
+      rest.future.completeExceptionally(new IllegalStateException("GachaPlus writer is stopped."));
+    }
+  }
+
+  /**
+   * Run tasks in a single transaction.
+   * A failing task is rolled back to its savepoint and only fails its own future, the rest of the batch still commits.
+   * @param List batch
+   */
+  private void commit(List<Entry<?>> batch) {
+    Connection c = null;
+    try {
+      c = con.get();
+      c.setAutoCommit(false);
+      for(Entry<?> entry: batch) {
+        entry.apply(con, c);
+      }
+      c.commit();
+      for(Entry<?> entry: batch) {
+        entry.complete();
+      }
+    } catch (SQLException e) {
+      GachaPlusUtility.logStackTrace(e);
+      con.invalidate();
+      try {
+        if(c != null) {
+          c.rollback();
+        }
+      } catch (SQLException re) {
+        GachaPlusUtility.logStackTrace(re);
+      }
+      for(Entry<?> entry: batch) {
+        entry.future.completeExceptionally(e);
+      }
+    } finally {
+      try {
+        if(c != null && !c.isClosed()) {
+          c.setAutoCommit(true);
+        }
+      } catch (SQLException e) {
+        GachaPlusUtility.logStackTrace(e);
+      }
+    }
+  }
+
+  /**
+   * Stop accepting writes, flush the queue and close the connection.
+   * @param long timeoutMillis
+   */
+  public void shutdown(long timeoutMillis) {
+    running = false;
+    try {
+      thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if(!thread.isAlive()) {
+      con.close();
+    }
+  }
+}